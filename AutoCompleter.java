@@ -0,0 +1,174 @@
+/*
+ * AutoCompleter.java
+ */
+
+import java.awt.event.ActionEvent;
+import java.awt.event.FocusAdapter;
+import java.awt.event.FocusEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+
+import static javax.swing.KeyStroke.getKeyStroke;
+
+/**
+ * Shows a popup of matching IDs and labels under a text field as digits are typed, looked up
+ * in an IdIndex in memory. Up and Down move through the list, Enter or a click fills the field
+ * in and Escape closes it. While the popup is closed those keys do whatever they did before,
+ * e.g. Enter still presses the Borrow button.
+ *
+ * Until setIndex is called the field works as a plain text field. Only used on the event thread.
+ */
+public class AutoCompleter {
+
+    private static final int MAX_SUGGESTIONS = 10;
+
+    private final JTextField field;
+    private final JPopupMenu popup = new JPopupMenu();
+    private final DefaultListModel<String> suggestions = new DefaultListModel<>();
+    private final JList<String> list = new JList<>(suggestions);
+    private final int[] positions = new int[MAX_SUGGESTIONS];
+    private final int[] suggestedIds = new int[MAX_SUGGESTIONS];
+
+    private IdIndex index;
+    // Set while the field is being filled in from the list, so that does not reopen the popup
+    private boolean accepting = false;
+
+
+    public AutoCompleter(JTextField field) {
+        this.field = field;
+
+        list.setFocusable(false);
+        list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        list.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                acceptSelection();
+            }
+        });
+        popup.setFocusable(false);
+        popup.add(new JScrollPane(list));
+
+        field.getDocument().addDocumentListener(new DocumentListener() {
+            public void insertUpdate(DocumentEvent e) {
+                changed();
+            }
+            public void removeUpdate(DocumentEvent e) {
+                changed();
+            }
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        field.addFocusListener(new FocusAdapter() {
+            @Override
+            public void focusLost(FocusEvent e) {
+                popup.setVisible(false);
+            }
+        });
+
+        bind("DOWN", "autocompleteDown", new PopupAction() {
+            public void actionPerformed(ActionEvent e) {
+                move(1);
+            }
+        });
+        bind("UP", "autocompleteUp", new PopupAction() {
+            public void actionPerformed(ActionEvent e) {
+                move(-1);
+            }
+        });
+        bind("ENTER", "autocompleteAccept", new PopupAction() {
+            public void actionPerformed(ActionEvent e) {
+                acceptSelection();
+            }
+        });
+        bind("ESCAPE", "autocompleteClose", new PopupAction() {
+            public void actionPerformed(ActionEvent e) {
+                popup.setVisible(false);
+            }
+        });
+    }
+
+
+    /**
+     * Uses a newly loaded index for suggestions from now on
+     */
+    public void setIndex(IdIndex index) {
+        this.index = index;
+    }
+
+    /**
+     * @return the index in use, null before one has been loaded
+     */
+    public IdIndex getIndex() {
+        return index;
+    }
+
+
+    private void bind(String key, String name, Action action) {
+        field.getInputMap(JComponent.WHEN_FOCUSED).put(getKeyStroke(key), name);
+        field.getActionMap().put(name, action);
+    }
+
+    private void changed() {
+        if (accepting) {
+            return;
+        }
+        // Document events arrive in the middle of an edit, so look up once it is finished
+        SwingUtilities.invokeLater(this::update);
+    }
+
+    private void update() {
+        IdIndex current = index;
+        String text = field.getText().trim();
+        int found = current == null || !field.isFocusOwner() ? 0 : current.complete(text, positions);
+        // Nothing to suggest if the only match is exactly what has been typed
+        if (found == 0 || (found == 1 && String.valueOf(current.getId(positions[0])).equals(text))) {
+            popup.setVisible(false);
+            return;
+        }
+
+        suggestions.clear();
+        for (int i = 0; i < found; i++) {
+            suggestedIds[i] = current.getId(positions[i]);
+            suggestions.addElement(suggestedIds[i] + "  " + current.getLabel(positions[i]));
+        }
+        list.setVisibleRowCount(found);
+        list.setSelectedIndex(0);
+        popup.pack();
+        if (!popup.isVisible()) {
+            popup.show(field, 0, field.getHeight());
+        }
+    }
+
+    private void move(int delta) {
+        int selected = list.getSelectedIndex() + delta;
+        if (selected >= 0 && selected < suggestions.size()) {
+            list.setSelectedIndex(selected);
+            list.ensureIndexIsVisible(selected);
+        }
+    }
+
+    private void acceptSelection() {
+        int selected = list.getSelectedIndex();
+        if (selected >= 0) {
+            accepting = true;
+            try {
+                field.setText(String.valueOf(suggestedIds[selected]));
+            } finally {
+                accepting = false;
+            }
+        }
+        popup.setVisible(false);
+    }
+
+
+    // Only enabled while the popup shows, so the key falls through to other bindings otherwise
+    private abstract class PopupAction extends AbstractAction {
+        @Override
+        public boolean isEnabled() {
+            return popup.isVisible();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * BoundedDocument.java
+ */
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import javax.swing.text.PlainDocument;
+
+/**
+ * A plain text document that keeps only its most recent text: once it holds more than maxChars
+ * characters or maxLines lines, whole lines are dropped from the start. Used for the output
+ * area, so a long session does not keep every catalogue ever shown in memory.
+ *
+ * Like any Swing document it must only be changed on the event thread.
+ */
+public class BoundedDocument extends PlainDocument {
+
+    private final int maxChars;
+    private final int maxLines;
+
+
+    public BoundedDocument(int maxChars, int maxLines) {
+        this.maxChars = maxChars;
+        this.maxLines = maxLines;
+    }
+
+
+    /**
+     * Adds text to the end, then trims the start back under the caps
+     */
+    public void append(String str) {
+        // No point inserting text that would be trimmed straight away
+        if (str.length() > maxChars) {
+            str = str.substring(str.length() - maxChars);
+        }
+        try {
+            insertString(getLength(), str, null);
+            trim();
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void trim() throws BadLocationException {
+        Element root = getDefaultRootElement();
+        int cut = 0;
+        if (getLength() > maxChars) {
+            cut = getLength() - maxChars;
+        }
+        int excessLines = root.getElementCount() - maxLines;
+        if (excessLines > 0) {
+            cut = Math.max(cut, root.getElement(excessLines).getStartOffset());
+        }
+        if (cut == 0) {
+            return;
+        }
+        // Round up to a line boundary so no partial line is left at the top
+        Element line = root.getElement(root.getElementIndex(cut));
+        if (line.getStartOffset() != cut) {
+            cut = Math.min(line.getEndOffset(), getLength());
+        }
+        remove(0, cut);
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * CatalogueExporter.java
+ */
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+
+/**
+ * Exports books, loans or customers to a CSV or JSON Lines file.
+ *
+ * Rows are read through a server side cursor, fetchSize at a time, and encoded straight into a
+ * fixed size buffer that is written to the file channel whenever it fills, so memory use stays
+ * the same however big the tables are.
+ */
+public class CatalogueExporter {
+
+    /**
+     * What to export
+     */
+    public enum Dataset {
+        BOOKS("Books with authors",
+                "SELECT b.isbn, b.title, b.edition_no, b.numofcop, b.numleft, " +
+                "string_agg(trim(a.name) || ' ' || trim(a.surname), ', ' ORDER BY ba.authorseqno) AS authors " +
+                "FROM book b " +
+                "LEFT JOIN book_author ba ON b.isbn = ba.isbn " +
+                "LEFT JOIN author a ON ba.authorid = a.authorid " +
+                "GROUP BY b.isbn " +
+                "ORDER BY b.isbn",
+                "SELECT b.isbn, b.title, b.edition_no, b.numofcop, " +
+                "(b.numleft + COALESCE((SELECT sum(s.numleft) FROM book_stripe s WHERE s.isbn = b.isbn), 0))::integer AS numleft, " +
+                "string_agg(trim(a.name) || ' ' || trim(a.surname), ', ' ORDER BY ba.authorseqno) AS authors " +
+                "FROM book b " +
+                "LEFT JOIN book_author ba ON b.isbn = ba.isbn " +
+                "LEFT JOIN author a ON ba.authorid = a.authorid " +
+                "GROUP BY b.isbn " +
+                "ORDER BY b.isbn"),
+        LOANS("Current loans",
+                "SELECT cb.isbn, b.title, cb.customerid, c.l_name, c.f_name, cb.duedate " +
+                "FROM cust_book cb " +
+                "JOIN book b ON cb.isbn = b.isbn " +
+                "JOIN customer c ON cb.customerid = c.customerid " +
+                "ORDER BY cb.isbn, cb.customerid"),
+        CUSTOMERS("Customers",
+                "SELECT customerid, l_name, f_name, city " +
+                "FROM customer " +
+                "ORDER BY customerid");
+
+        private final String label;
+        private final String query;
+        // The query once library_stripes.sql is installed, adding the stripes to the copies left
+        private final String stripedQuery;
+
+        Dataset(String label, String query) {
+            this(label, query, query);
+        }
+
+        Dataset(String label, String query, String stripedQuery) {
+            this.label = label;
+            this.query = query;
+            this.stripedQuery = stripedQuery;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * File format, chosen from the file name by forFile
+     */
+    public enum Format {
+        CSV, JSONL;
+
+        /**
+         * @return JSONL for a .json or .jsonl file, CSV otherwise
+         */
+        public static Format forFile(Path file) {
+            String name = file.getFileName().toString().toLowerCase();
+            return name.endsWith(".jsonl") || name.endsWith(".json") ? JSONL : CSV;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final int fetchSize;
+    private final int bufferBytes;
+    private final boolean striped;
+
+
+    /**
+     * @param pool - connections to read with
+     * @param fetchSize - rows fetched from the cursor at a time
+     * @param bufferBytes - size of the write buffer
+     * @param striped - whether library_stripes.sql is installed, so copies left include the stripes
+     */
+    public CatalogueExporter(ConnectionPool pool, int fetchSize, int bufferBytes, boolean striped) {
+        this.pool = pool;
+        this.fetchSize = fetchSize;
+        this.bufferBytes = bufferBytes;
+        this.striped = striped;
+    }
+
+
+    /**
+     * Writes every row of the dataset to file, replacing it if it exists
+     *
+     * @return number of rows written
+     */
+    public long export(Dataset dataset, Format format, Path file) throws SQLException, IOException {
+        try (PooledConnection con = pool.acquire();
+             FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+             Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8.newEncoder(), bufferBytes)) {
+            // The driver only uses a cursor inside a transaction
+            con.setAutoCommit(false);
+
+            try (PreparedStatement stmt = con.prepareStatement(striped ? dataset.stripedQuery : dataset.query)) {
+                stmt.setFetchSize(fetchSize);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    ResultSetMetaData meta = rs.getMetaData();
+                    int columns = meta.getColumnCount();
+                    String[] names = new String[columns];
+                    boolean[] numeric = new boolean[columns];
+                    for (int i = 0; i < columns; i++) {
+                        names[i] = meta.getColumnLabel(i + 1);
+                        numeric[i] = isNumeric(meta.getColumnType(i + 1));
+                    }
+
+                    if (format == Format.CSV) {
+                        for (int i = 0; i < columns; i++) {
+                            if (i > 0) {
+                                out.write(',');
+                            }
+                            writeCsv(out, names[i]);
+                        }
+                        out.write("\r\n");
+                    }
+
+                    long rows = 0;
+                    while (rs.next()) {
+                        LibraryMetrics.rowRead();
+                        if (format == Format.CSV) {
+                            writeCsvRow(out, rs, columns);
+                        } else {
+                            writeJsonRow(out, rs, names, numeric);
+                        }
+                        rows++;
+                    }
+                    return rows;
+                }
+            }
+        }
+    }
+
+
+    private static boolean isNumeric(int type) {
+        switch (type) {
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+            case Types.REAL:
+            case Types.DOUBLE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // char(n) columns come back padded, which nobody wants in an export
+    private static String value(ResultSet rs, int column) throws SQLException {
+        String value = rs.getString(column);
+        return value == null ? null : value.trim();
+    }
+
+    // RFC 4180: quote fields containing separators, quotes or line breaks; NULL is an empty field
+    private static void writeCsvRow(Writer out, ResultSet rs, int columns) throws SQLException, IOException {
+        for (int i = 1; i <= columns; i++) {
+            if (i > 1) {
+                out.write(',');
+            }
+            String value = value(rs, i);
+            if (value != null) {
+                writeCsv(out, value);
+            }
+        }
+        out.write("\r\n");
+    }
+
+    private static void writeCsv(Writer out, String value) throws IOException {
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
+
+    private static void writeJsonRow(Writer out, ResultSet rs, String[] names, boolean[] numeric)
+            throws SQLException, IOException {
+        out.write('{');
+        for (int i = 0; i < names.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeJsonString(out, names[i]);
+            out.write(':');
+            String value = value(rs, i + 1);
+            if (value == null) {
+                out.write("null");
+            } else if (numeric[i]) {
+                out.write(value);
+            } else {
+                writeJsonString(out, value);
+            }
+        }
+        out.write("}\n");
+    }
+
+    private static void writeJsonString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+}
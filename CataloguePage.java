@@ -0,0 +1,80 @@
+/*
+ * CataloguePage.java
+ */
+
+/**
+ * One page of the catalogue returned by LibraryModel.nextCataloguePage, along with the
+ * (isbn, authorseqno) key of its last row so the following page can carry on from there.
+ */
+public class CataloguePage {
+
+    private final String text;
+    private final int lastIsbn;
+    private final int lastAuthorSeqNo;
+    private final boolean hasMore;
+    private final int rows;
+    private final boolean possiblyStale;
+
+    public CataloguePage(String text, int lastIsbn, int lastAuthorSeqNo, boolean hasMore, int rows) {
+        this(text, lastIsbn, lastAuthorSeqNo, hasMore, rows, false);
+    }
+
+    private CataloguePage(String text, int lastIsbn, int lastAuthorSeqNo, boolean hasMore, int rows, boolean possiblyStale) {
+        this.text = text;
+        this.lastIsbn = lastIsbn;
+        this.lastAuthorSeqNo = lastAuthorSeqNo;
+        this.hasMore = hasMore;
+        this.rows = rows;
+        this.possiblyStale = possiblyStale;
+    }
+
+    /**
+     * @return this page, flagged as formatted from a local snapshot not yet checked against the database
+     */
+    public CataloguePage possiblyStale() {
+        return new CataloguePage(text, lastIsbn, lastAuthorSeqNo, hasMore, rows, true);
+    }
+
+    /**
+     * @return the formatted page, in the same layout as showCatalogue
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return isbn of the last row on this page
+     */
+    public int getLastIsbn() {
+        return lastIsbn;
+    }
+
+    /**
+     * @return authorseqno of the last row on this page, -1 for a book with no authors
+     */
+    public int getLastAuthorSeqNo() {
+        return lastAuthorSeqNo;
+    }
+
+    /**
+     * @return true if there are rows after this page
+     */
+    public boolean hasMore() {
+        return hasMore;
+    }
+
+    /**
+     * @return number of (book, author) rows on this page
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return true if titles and authors may be out of date: the page came from the local
+     * snapshot before it was checked against the database. Copies left are always current.
+     */
+    public boolean isPossiblyStale() {
+        return possiblyStale;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * CatalogueReplica.java
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory copy of the library tables, kept current by ReplicaSync, that answers the
+ * lookups of LibraryModel without a round trip. Each report is formatted exactly as the model
+ * formats the same query from the database.
+ *
+ * Rows are keyed as in the database and values are kept as the strings JDBC returned, so the
+ * reports match character for character. Changes are applied in batches under a write lock, so
+ * a report never sees half of a sync.
+ */
+public class CatalogueReplica {
+
+    static class Book {
+        final String title;
+        final String edition;
+        final String copies;
+        final String left;
+
+        Book(String title, String edition, String copies, String left) {
+            this.title = title;
+            this.edition = edition;
+            this.copies = copies;
+            this.left = left;
+        }
+    }
+
+    static class Author {
+        final String name;
+        final String surname;
+
+        Author(String name, String surname) {
+            this.name = name;
+            this.surname = surname;
+        }
+    }
+
+    static class Customer {
+        final String lastName;
+        final String firstName;
+        final String city;
+
+        Customer(String lastName, String firstName, String city) {
+            this.lastName = lastName;
+            this.firstName = firstName;
+            this.city = city;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final TreeMap<Integer, Book> books = new TreeMap<>();
+    private final TreeMap<Integer, Author> authors = new TreeMap<>();
+    private final TreeMap<Integer, Customer> customers = new TreeMap<>();
+    // isbn -> authorid -> authorseqno, and authorid -> isbns
+    private final Map<Integer, Map<Integer, Integer>> bookAuthors = new HashMap<>();
+    private final Map<Integer, TreeSet<Integer>> authorBooks = new HashMap<>();
+    // customerid -> isbns on loan
+    private final Map<Integer, TreeSet<Integer>> loans = new HashMap<>();
+
+
+    /**
+     * Holds the write lock for a batch of changes, so readers see all of them or none
+     */
+    public void beginUpdate() {
+        lock.writeLock().lock();
+    }
+
+    public void endUpdate() {
+        lock.writeLock().unlock();
+    }
+
+
+    // The methods below change one row, null values remove it. Callers hold the write lock.
+
+    void putBook(int isbn, Book book) {
+        if (book == null) {
+            books.remove(isbn);
+        } else {
+            books.put(isbn, book);
+        }
+    }
+
+    void putAuthor(int authorID, Author author) {
+        if (author == null) {
+            authors.remove(authorID);
+        } else {
+            authors.put(authorID, author);
+        }
+    }
+
+    void putCustomer(int customerID, Customer customer) {
+        if (customer == null) {
+            customers.remove(customerID);
+        } else {
+            customers.put(customerID, customer);
+        }
+    }
+
+    void putBookAuthor(int isbn, int authorID, Integer seqNo) {
+        if (seqNo == null) {
+            Map<Integer, Integer> links = bookAuthors.get(isbn);
+            if (links != null && links.remove(authorID) != null && links.isEmpty()) {
+                bookAuthors.remove(isbn);
+            }
+            TreeSet<Integer> isbns = authorBooks.get(authorID);
+            if (isbns != null && isbns.remove(isbn) && isbns.isEmpty()) {
+                authorBooks.remove(authorID);
+            }
+        } else {
+            bookAuthors.computeIfAbsent(isbn, k -> new HashMap<>()).put(authorID, seqNo);
+            authorBooks.computeIfAbsent(authorID, k -> new TreeSet<>()).add(isbn);
+        }
+    }
+
+    void putLoan(int isbn, int customerID, boolean onLoan) {
+        if (onLoan) {
+            loans.computeIfAbsent(customerID, k -> new TreeSet<>()).add(isbn);
+        } else {
+            TreeSet<Integer> isbns = loans.get(customerID);
+            if (isbns != null && isbns.remove(isbn) && isbns.isEmpty()) {
+                loans.remove(customerID);
+            }
+        }
+    }
+
+    /**
+     * Empties one table, before it is loaded again in full
+     */
+    void clear(String table) {
+        switch (table) {
+            case "book":
+                books.clear();
+                break;
+            case "author":
+                authors.clear();
+                break;
+            case "customer":
+                customers.clear();
+                break;
+            case "book_author":
+                bookAuthors.clear();
+                authorBooks.clear();
+                break;
+            case "cust_book":
+                loans.clear();
+                break;
+            default:
+                throw new IllegalArgumentException("Not a replicated table: " + table);
+        }
+    }
+
+
+    /**
+     * @return the same text as LibraryModel.bookLookup
+     */
+    public String bookLookup(int isbn) {
+        lock.readLock().lock();
+        try {
+            Book book = books.get(isbn);
+            List<int[]> links = new ArrayList<>();
+            if (book != null) {
+                for (Map.Entry<Integer, Integer> link : bookAuthors.getOrDefault(isbn, Collections.emptyMap()).entrySet()) {
+                    if (authors.containsKey(link.getKey())) {
+                        links.add(new int[]{link.getValue(), link.getKey()});
+                    }
+                }
+            }
+            // The query joins authors, so a book without any is not found
+            if (links.isEmpty()) {
+                return "No book found with ISBN: " + isbn;
+            }
+            links.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+
+            StringBuilder result = new StringBuilder();
+            result.append("ISBN: ").append(isbn).append("\nBook Lookup:\n")
+                    .append("\t").append(isbn).append(": ").append(book.title).append("\n")
+                    .append("\tEdition: ").append(book.edition).append(" - Number of copies: ").append(book.copies)
+                    .append(" - Copies left: ").append(book.left)
+                    .append("\n\tAuthors:\n");
+            for (int[] link : links) {
+                Author author = authors.get(link[1]);
+                result.append("\t  - ").append(author.name).append(" ").append(author.surname)
+                        .append(" (AuthorSeqNo: ").append(link[0]).append(")\n");
+            }
+            return result.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the same text as LibraryModel.showAuthor
+     */
+    public String showAuthor(int authorID) {
+        lock.readLock().lock();
+        try {
+            Author author = authors.get(authorID);
+            if (author == null) {
+                return "Show Author:\n    No such author ID: " + authorID;
+            }
+            StringBuilder result = new StringBuilder("Show Author:\n");
+            result.append("    ").append(authorID).append(" - ").append(author.name).append(" ").append(author.surname)
+                    .append("\n    Book written:\n");
+            for (int isbn : authorBooks.getOrDefault(authorID, new TreeSet<>())) {
+                Book book = books.get(isbn);
+                if (book != null) {
+                    result.append("        ").append(isbn).append(" - ").append(book.title).append("\n");
+                }
+            }
+            return result.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the same text as LibraryModel.showAllAuthors
+     */
+    public String showAllAuthors() {
+        lock.readLock().lock();
+        try {
+            StringBuilder result = new StringBuilder("Show All Authors:\n");
+            for (Map.Entry<Integer, Author> e : authors.entrySet()) {
+                result.append("    ").append(e.getKey()).append(": ")
+                        .append(e.getValue().surname).append(", ").append(e.getValue().name).append("\n");
+            }
+            return result.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the same text as LibraryModel.showCustomer, empty for a customer with no loans
+     */
+    public String showCustomer(int customerID) {
+        lock.readLock().lock();
+        try {
+            Customer customer = customers.get(customerID);
+            List<Integer> borrowed = new ArrayList<>();
+            if (customer != null) {
+                for (int isbn : loans.getOrDefault(customerID, new TreeSet<>()).descendingSet()) {
+                    if (books.containsKey(isbn)) {
+                        borrowed.add(isbn);
+                    }
+                }
+            }
+            if (borrowed.isEmpty()) {
+                return "";
+            }
+            StringBuilder result = new StringBuilder("Show Customer:\n");
+            result.append("    ").append(customerID).append(": ").append(customer.firstName).append(" ").append(customer.lastName)
+                    .append("\n    Book Borrowed:\n");
+            for (int isbn : borrowed) {
+                result.append("        ").append(isbn).append(" - ").append(books.get(isbn).title).append("\n");
+            }
+            return result.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the same text as LibraryModel.showAllCustomers
+     */
+    public String showAllCustomers() {
+        lock.readLock().lock();
+        try {
+            StringBuilder result = new StringBuilder("Show all Customers:\n");
+            for (Map.Entry<Integer, Customer> e : customers.entrySet()) {
+                Customer customer = e.getValue();
+                result.append("    ").append(e.getKey()).append(": ").append(customer.lastName).append(", ")
+                        .append(customer.firstName).append(" - ").append(customer.city == null ? "(no city)" : customer.city)
+                        .append("\n");
+            }
+            return result.toString();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return row counts of each table
+     */
+    public String getStats() {
+        lock.readLock().lock();
+        try {
+            int links = 0;
+            for (Map<Integer, Integer> l : bookAuthors.values()) {
+                links += l.size();
+            }
+            int loaned = 0;
+            for (TreeSet<Integer> l : loans.values()) {
+                loaned += l.size();
+            }
+            return "Replica: " + books.size() + " books, " + authors.size() + " authors, " + links + " book authors, "
+                    + customers.size() + " customers, " + loaned + " loans";
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * CatalogueSnapshot.java
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A local copy of books, authors and book_author links in a binary file, read through a
+ * MappedByteBuffer so catalogue pages are formatted from memory instead of joined on the server.
+ *
+ * The file is columnar: each column is a run of fixed width values, and titles and names are
+ * offsets into one UTF-8 string heap, so opening it reads nothing but the header and pages are
+ * only touched when shown. It is tagged with a revision marker that changes whenever any of the
+ * rows it holds does: the counter library_changelog.sql bumps on every catalogue write, or
+ * without it an md5 of every catalogue row.
+ *
+ * Copies left change with every loan, so they are not kept: page() is handed the current ones.
+ *
+ * Layout, big-endian:
+ *     header   magic, version, created millis, marker length and bytes, book/author/link counts, heap size
+ *     books    isbn[n], edition_no[n], numofcop[n], title offset[n + 1], first link[n + 1]
+ *     authors  name offset[m + 1], surname offset[m + 1]
+ *     links    author position[l], authorseqno[l], in (isbn, authorseqno) order
+ *     heap     UTF-8 bytes
+ */
+public class CatalogueSnapshot {
+
+    private static final int MAGIC = 0x4C494253; // "LIBS"
+    private static final int VERSION = 2;
+
+    // One row, bumped by statements that change the columns the snapshot stores, so reading the
+    // marker reads one row. Loans do not change it.
+    private static final String REVISION_QUERY = "SELECT 'rev:' || rev FROM library_catalogue_revision";
+    // The fallback: hashes exactly the columns the snapshot stores, each row as its row literal so
+    // NULLs and commas cannot run two rows together. Reads every catalogue row.
+    private static final String MARKER_QUERY =
+            "SELECT md5(" +
+            "coalesce((SELECT string_agg(md5(ROW(isbn, title, edition_no, numofcop)::text), '' ORDER BY isbn) FROM book), '') || '/' || " +
+            "coalesce((SELECT string_agg(md5(ROW(authorid, name, surname)::text), '' ORDER BY authorid) FROM author), '') || '/' || " +
+            "coalesce((SELECT string_agg(md5(ROW(isbn, authorid, authorseqno)::text), '' ORDER BY isbn, authorid) FROM book_author), ''))";
+
+    private final MappedByteBuffer buffer;
+    private final String marker;
+    private final long createdAt;
+    private final int books;
+    private final int authors;
+    private final int links;
+
+    // Start of each column
+    private final int isbnAt;
+    private final int editionAt;
+    private final int copiesAt;
+    private final int titleAt;
+    private final int firstLinkAt;
+    private final int nameAt;
+    private final int surnameAt;
+    private final int linkAuthorAt;
+    private final int linkSeqAt;
+    private final int heapAt;
+
+
+    private CatalogueSnapshot(MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a catalogue snapshot, or written by a different version");
+        }
+        createdAt = buffer.getLong(8);
+        int markerLength = buffer.getInt(16);
+        byte[] markerBytes = new byte[markerLength];
+        for (int i = 0; i < markerLength; i++) {
+            markerBytes[i] = buffer.get(20 + i);
+        }
+        marker = new String(markerBytes, StandardCharsets.UTF_8);
+        int at = 20 + markerLength;
+        books = buffer.getInt(at);
+        authors = buffer.getInt(at + 4);
+        links = buffer.getInt(at + 8);
+        int heapSize = buffer.getInt(at + 12);
+        at += 16;
+
+        isbnAt = at;
+        editionAt = isbnAt + 4 * books;
+        copiesAt = editionAt + 4 * books;
+        titleAt = copiesAt + 4 * books;
+        firstLinkAt = titleAt + 4 * (books + 1);
+        nameAt = firstLinkAt + 4 * (books + 1);
+        surnameAt = nameAt + 4 * (authors + 1);
+        linkAuthorAt = surnameAt + 4 * (authors + 1);
+        linkSeqAt = linkAuthorAt + 4 * links;
+        heapAt = linkSeqAt + 4 * links;
+        if (heapAt + heapSize != buffer.capacity()) {
+            throw new IOException("Catalogue snapshot is truncated");
+        }
+    }
+
+
+    /**
+     * Maps an existing snapshot file
+     */
+    public static CatalogueSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new CatalogueSnapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return the current revision marker of the database, to compare with getMarker
+     */
+    public static String readMarker(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement()) {
+            boolean counted;
+            try (ResultSet rs = stmt.executeQuery("SELECT to_regclass('library_catalogue_revision') IS NOT NULL")) {
+                rs.next();
+                counted = rs.getBoolean(1);
+            }
+            try (ResultSet rs = stmt.executeQuery(counted ? REVISION_QUERY : MARKER_QUERY)) {
+                rs.next();
+                return rs.getString(1);
+            }
+        }
+    }
+
+
+    /**
+     * Reads the catalogue in one consistent transaction and writes it to file, replacing the
+     * old snapshot only once the new one is complete
+     *
+     * @return the new snapshot
+     */
+    public static CatalogueSnapshot write(Connection con, Path file) throws SQLException, IOException {
+        List<int[]> bookRows = new ArrayList<>();
+        List<String> titles = new ArrayList<>();
+        Map<Integer, Integer> authorPositions = new HashMap<>();
+        List<String> names = new ArrayList<>();
+        List<String> surnames = new ArrayList<>();
+        List<int[]> linkRows = new ArrayList<>();
+        String marker;
+
+        boolean autoCommit = con.getAutoCommit();
+        int isolation = con.getTransactionIsolation();
+        con.setAutoCommit(false);
+        con.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        try (Statement stmt = con.createStatement()) {
+            marker = readMarker(con);
+            try (ResultSet rs = stmt.executeQuery("SELECT isbn, title, edition_no, numofcop FROM book ORDER BY isbn")) {
+                while (rs.next()) {
+                    bookRows.add(new int[]{rs.getInt(1), rs.getInt(3), rs.getInt(4)});
+                    titles.add(rs.getString(2));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT authorid, name, surname FROM author ORDER BY authorid")) {
+                while (rs.next()) {
+                    authorPositions.put(rs.getInt(1), names.size());
+                    names.add(rs.getString(2));
+                    surnames.add(rs.getString(3));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT isbn, authorid, COALESCE(authorseqno, -1) AS seqno FROM book_author ORDER BY isbn, seqno")) {
+                while (rs.next()) {
+                    Integer position = authorPositions.get(rs.getInt(2));
+                    linkRows.add(new int[]{rs.getInt(1), position == null ? -1 : position, rs.getInt(3)});
+                }
+            }
+            con.commit();
+        } finally {
+            con.setAutoCommit(autoCommit);
+            con.setTransactionIsolation(isolation);
+        }
+
+        // Build the string heap first, so the size of every section is known
+        HeapBuilder heap = new HeapBuilder();
+        int[] titleOffsets = heap.addAll(titles);
+        int[] nameOffsets = heap.addAll(names);
+        int[] surnameOffsets = heap.addAll(surnames);
+
+        byte[] markerBytes = marker.getBytes(StandardCharsets.UTF_8);
+        int n = bookRows.size();
+        int m = names.size();
+        int l = linkRows.size();
+        int size = 20 + markerBytes.length + 16
+                + 3 * 4 * n + 2 * 4 * (n + 1)
+                + 2 * 4 * (m + 1)
+                + 2 * 4 * l
+                + heap.size();
+
+        // Written straight into the mapped temp file rather than built on the heap first
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            writeSnapshot(out, marker, bookRows, linkRows, heap, titleOffsets, nameOffsets, surnameOffsets);
+            out.force();
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    private static void writeSnapshot(ByteBuffer out, String marker, List<int[]> bookRows, List<int[]> linkRows,
+                                      HeapBuilder heap, int[] titleOffsets, int[] nameOffsets, int[] surnameOffsets) {
+        byte[] markerBytes = marker.getBytes(StandardCharsets.UTF_8);
+        int n = bookRows.size();
+        int m = nameOffsets.length - 1;
+        int l = linkRows.size();
+
+        out.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+        out.putInt(markerBytes.length).put(markerBytes);
+        out.putInt(n).putInt(m).putInt(l).putInt(heap.size());
+        for (int[] book : bookRows) {
+            out.putInt(book[0]);
+        }
+        for (int column = 1; column <= 2; column++) {
+            for (int[] book : bookRows) {
+                out.putInt(book[column]);
+            }
+        }
+        for (int offset : titleOffsets) {
+            out.putInt(offset);
+        }
+        // Links are in isbn order too, so each book's links follow on from the previous book's
+        int link = 0;
+        for (int[] book : bookRows) {
+            while (link < l && linkRows.get(link)[0] < book[0]) {
+                link++; // a link to a book we did not see, cannot happen with the foreign key
+            }
+            out.putInt(link);
+            while (link < l && linkRows.get(link)[0] == book[0]) {
+                link++;
+            }
+        }
+        out.putInt(link);
+        for (int offset : nameOffsets) {
+            out.putInt(offset);
+        }
+        for (int offset : surnameOffsets) {
+            out.putInt(offset);
+        }
+        for (int[] row : linkRows) {
+            out.putInt(row[1]);
+        }
+        for (int[] row : linkRows) {
+            out.putInt(row[2]);
+        }
+        heap.writeTo(out);
+    }
+
+
+    /**
+     * @return the revision marker of the database when the snapshot was taken
+     */
+    public String getMarker() {
+        return marker;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when the snapshot was taken
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    public int getBookCount() {
+        return books;
+    }
+
+
+    /**
+     * Formats one page of the catalogue exactly as LibraryModel.nextCataloguePage does from the
+     * database, continuing after the (isbn, authorseqno) key of the previous page
+     *
+     * @param previous - the page before this one, or null for the first page
+     * @param pageSize - maximum number of (book, author) rows on the page
+     * @param copiesLeft - current copies left by isbn, for at least every book on the page
+     * @return the page, or null if copiesLeft is missing one of its books
+     */
+    public CataloguePage page(CataloguePage previous, int pageSize, Map<Integer, Integer> copiesLeft) {
+        int afterIsbn = previous == null ? Integer.MIN_VALUE : previous.getLastIsbn();
+        int afterSeqNo = previous == null ? Integer.MIN_VALUE : previous.getLastAuthorSeqNo();
+
+        StringBuilder result = new StringBuilder();
+        int lastIsbn = afterIsbn;
+        int lastSeqNo = afterSeqNo;
+        int rows = 0;
+        boolean hasMore = false;
+
+        for (int book = firstBookFrom(afterIsbn); book < books && !hasMore; book++) {
+            int isbn = buffer.getInt(isbnAt + 4 * book);
+            int from = buffer.getInt(firstLinkAt + 4 * book);
+            int to = buffer.getInt(firstLinkAt + 4 * (book + 1));
+            // A book without authors is one row with authorseqno -1, and no link
+            int first = from == to ? -1 : from;
+            int end = from == to ? 0 : to;
+            for (int link = first; link < end; link++) {
+                int seqNo = link < 0 ? -1 : buffer.getInt(linkSeqAt + 4 * link);
+                if (isbn == afterIsbn && seqNo <= afterSeqNo) {
+                    continue;
+                }
+                if (rows == pageSize) {
+                    hasMore = true;
+                    break;
+                }
+                String author = link < 0 ? null : authorName(buffer.getInt(linkAuthorAt + 4 * link));
+                if (rows == 0 && previous != null && isbn == previous.getLastIsbn()) {
+                    // Page starts part way through a book's authors
+                    result.append(isbn).append(": ").append(title(book)).append(" (continued)\n");
+                    result.append("\tAuthor: ").append(author).append("\n");
+                } else if (rows == 0 || isbn != lastIsbn) {
+                    Integer left = copiesLeft.get(isbn);
+                    if (left == null) {
+                        return null; // added or deleted since the snapshot was checked
+                    }
+                    if (rows != 0) {
+                        result.append("\n");
+                    }
+                    result.append(isbn).append(": ").append(title(book)).append("\n");
+                    result.append("\tEdition: ").append(buffer.getInt(editionAt + 4 * book))
+                            .append(" - Number of copies: ").append(buffer.getInt(copiesAt + 4 * book))
+                            .append(" - Copies left: ").append(left).append("\n");
+                    if (author == null) {
+                        result.append("\t(no authors)\n");
+                    } else {
+                        result.append("\tAuthor: ").append(author).append("\n");
+                    }
+                } else {
+                    result.append("\tAuthor: ").append(author).append("\n");
+                }
+                lastIsbn = isbn;
+                lastSeqNo = seqNo;
+                rows++;
+            }
+        }
+
+        if (rows == 0 && previous == null) {
+            result.append("(No books in the catalogue)");
+        } else if (hasMore) {
+            result.append("(More books to show)");
+        } else {
+            result.append("(End of catalogue)");
+        }
+        return new CataloguePage(result.toString(), lastIsbn, lastSeqNo, hasMore, rows);
+    }
+
+
+    // Position of the first book with isbn >= the given one, by binary search over the isbn column
+    private int firstBookFrom(int isbn) {
+        int low = 0;
+        int high = books;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getInt(isbnAt + 4 * mid) < isbn) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private String title(int book) {
+        return string(titleAt, book);
+    }
+
+    private String authorName(int author) {
+        if (author < 0) {
+            return "null null";
+        }
+        return string(nameAt, author) + " " + string(surnameAt, author);
+    }
+
+    // Entry i of an offset column into the heap, see HeapBuilder
+    private String string(int column, int i) {
+        int from = buffer.getInt(column + 4 * i);
+        int to = buffer.getInt(column + 4 * (i + 1));
+        if (from < 0) {
+            return null;
+        }
+        if (to < 0) {
+            to = ~to;
+        }
+        byte[] bytes = new byte[to - from];
+        for (int b = 0; b < bytes.length; b++) {
+            bytes[b] = buffer.get(heapAt + from + b);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+    // Concatenates strings into one UTF-8 heap. Each column gets n + 1 offsets, entry i being
+    // bytes [offset[i], offset[i + 1]). A NULL is stored as the complement of its offset, so
+    // it is negative but still tells the entry before it where to end.
+    private static class HeapBuilder {
+        private byte[] bytes = new byte[4096];
+        private int size = 0;
+
+        int[] addAll(List<String> strings) {
+            int[] offsets = new int[strings.size() + 1];
+            for (int i = 0; i < strings.size(); i++) {
+                String s = strings.get(i);
+                if (s == null) {
+                    offsets[i] = ~size;
+                    continue;
+                }
+                offsets[i] = size;
+                byte[] encoded = s.getBytes(StandardCharsets.UTF_8);
+                if (size + encoded.length > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + encoded.length));
+                }
+                System.arraycopy(encoded, 0, bytes, size, encoded.length);
+                size += encoded.length;
+            }
+            offsets[strings.size()] = size;
+            return offsets;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void writeTo(ByteBuffer out) {
+            out.put(bytes, 0, size);
+        }
+    }
+}
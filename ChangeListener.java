@@ -0,0 +1,188 @@
+/*
+ * ChangeListener.java
+ */
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+import java.sql.*;
+
+/**
+ * Listens on the library_changes channel (see library_notify.sql) on its own connection and
+ * passes each changed key to a Handler, so caches can drop what another desk has changed.
+ *
+ * If the connection drops the listener reconnects with exponential backoff, and tells the
+ * handler it may have missed changes, since notifications sent while it was away are lost.
+ *
+ * To try it against a local database, install the triggers and run
+ *     java ChangeListener jdbc:postgresql://localhost/library user password
+ * then change some rows from psql; each notification is printed as it arrives.
+ */
+public class ChangeListener implements Runnable, AutoCloseable {
+
+    public static final String CHANNEL = "library_changes";
+
+    /**
+     * Receives changes on the listener thread
+     */
+    public interface Handler {
+        /**
+         * @param table - book, author, customer, cust_book or book_author
+         * @param keys - key columns of the changed row, in the order of the payload
+         */
+        void changed(String table, int[] keys);
+
+        /**
+         * Every row of the table may have changed (TRUNCATE, or one statement changed many rows)
+         */
+        void tableChanged(String table);
+
+        /**
+         * The listener was not connected for a while, so anything may have changed
+         */
+        void missedChanges();
+    }
+
+    private final String url;
+    private final String userid;
+    private final String password;
+    private final Handler handler;
+    private final int pollMillis;
+
+    private volatile boolean running = true;
+    private volatile Connection con;
+    private final Thread thread;
+
+
+    public ChangeListener(String url, String userid, String password, Handler handler, int pollMillis) {
+        this.url = url;
+        this.userid = userid;
+        this.password = password;
+        this.handler = handler;
+        this.pollMillis = pollMillis;
+        this.thread = new Thread(this, "library-change-listener");
+        this.thread.setDaemon(true);
+    }
+
+
+    public void start() {
+        thread.start();
+    }
+
+
+    @Override
+    public void run() {
+        long backoff = 1000;
+        while (running) {
+            try (Connection listenCon = DriverManager.getConnection(url, userid, password)) {
+                con = listenCon;
+                try (Statement stmt = listenCon.createStatement()) {
+                    stmt.execute("LISTEN " + CHANNEL);
+                }
+                // Anything could have changed before LISTEN took effect
+                handler.missedChanges();
+                backoff = 1000;
+                listen(listenCon);
+            } catch (SQLException e) {
+                if (!running) {
+                    break;
+                }
+                System.err.println("Change listener lost its connection, retrying in " + backoff + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                backoff = Math.min(backoff * 2, 60000);
+            } finally {
+                con = null;
+            }
+        }
+    }
+
+    // Waits for notifications until the connection fails or the listener is closed
+    private void listen(Connection listenCon) throws SQLException {
+        PGConnection pgCon = listenCon.unwrap(PGConnection.class);
+        long lastCheck = System.currentTimeMillis();
+
+        while (running) {
+            PGNotification[] notifications = pgCon.getNotifications(pollMillis);
+            if (notifications != null) {
+                for (PGNotification notification : notifications) {
+                    dispatch(notification.getParameter());
+                }
+            }
+            // A silently dropped connection never errors while we only wait, so check it now and then
+            if (System.currentTimeMillis() - lastCheck > 30000) {
+                if (!listenCon.isValid(5)) {
+                    throw new SQLException("Listen connection is no longer valid.");
+                }
+                lastCheck = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private void dispatch(String payload) {
+        String[] parts = payload.split(":");
+        if (parts.length < 2) {
+            return;
+        }
+        if (parts[1].equals("*")) {
+            handler.tableChanged(parts[0]);
+            return;
+        }
+        try {
+            int[] keys = new int[parts.length - 1];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = Integer.parseInt(parts[i + 1]);
+            }
+            handler.changed(parts[0], keys);
+        } catch (NumberFormatException e) {
+            // Not one of ours, or a key we cannot parse: play safe
+            handler.tableChanged(parts[0]);
+        }
+    }
+
+
+    /**
+     * Stops listening and closes the listen connection
+     */
+    @Override
+    public void close() {
+        running = false;
+        Connection c = con;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (SQLException e) {
+                // Closing anyway
+            }
+        }
+        thread.interrupt();
+    }
+
+
+    /**
+     * Prints every change notification, for trying the triggers out against a local database
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3) {
+            System.err.println("Usage: java ChangeListener <jdbc url> <user> <password>");
+            System.exit(1);
+        }
+        Class.forName("org.postgresql.Driver");
+        ChangeListener listener = new ChangeListener(args[0], args[1], args[2], new Handler() {
+            public void changed(String table, int[] keys) {
+                System.out.println("changed: " + table + " " + java.util.Arrays.toString(keys));
+            }
+            public void tableChanged(String table) {
+                System.out.println("table changed: " + table);
+            }
+            public void missedChanges() {
+                System.out.println("(re)connected, listening on " + CHANNEL);
+            }
+        }, 1000);
+        listener.thread.setDaemon(false);
+        listener.start();
+    }
+}
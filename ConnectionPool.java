@@ -0,0 +1,286 @@
+/*
+ * ConnectionPool.java
+ */
+
+import java.sql.*;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small bounded pool of JDBC connections shared by every LibraryModel operation.
+ *
+ * Connections are opened lazily up to maxSize, validated when they have been idle for a while,
+ * and closed again by a background evictor once they sit idle longer than the idle timeout
+ * (never dropping below minSize). Callers that cannot get a connection within the acquire
+ * timeout get an SQLTimeoutException, so they can report it like any other query error.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private final String url;
+    private final String userid;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final long validateAfterMillis;
+    private final int statementCacheSize;
+    private final SlowQueryLog slowQueryLog;
+    private final StatementCache.Stats statementStats = new StatementCache.Stats();
+
+    // Idle connections, most recently used first
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();
+    // Number of open connections, idle plus borrowed (plus any being opened)
+    private int total = 0;
+    private boolean closed = false;
+
+    private final ScheduledExecutorService evictor;
+
+
+    /**
+     * Creates the pool and opens minSize connections straight away, so a bad login fails here
+     *
+     * @param url - JDBC url of the database
+     * @param userid
+     * @param password
+     * @param minSize - connections kept open even when idle
+     * @param maxSize - upper bound on open connections
+     * @param acquireTimeoutMillis - how long acquire() waits for a free connection
+     * @param idleTimeoutMillis - idle time after which surplus connections are closed
+     * @param validateAfterMillis - idle time after which a connection is checked before reuse
+     * @param statementCacheSize - prepared statements kept per connection
+     * @param slowQueryLog - where slow statements are logged, null for none
+     */
+    public ConnectionPool(String url, String userid, String password, int minSize, int maxSize,
+                          long acquireTimeoutMillis, long idleTimeoutMillis, long validateAfterMillis,
+                          int statementCacheSize, SlowQueryLog slowQueryLog) throws SQLException {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.url = url;
+        this.userid = userid;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.validateAfterMillis = validateAfterMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.slowQueryLog = slowQueryLog;
+
+        try {
+            for (int i = 0; i < minSize; i++) {
+                PooledConnection pc = open();
+                synchronized (this) {
+                    total++;
+                    idle.addFirst(pc);
+                }
+            }
+        } catch (SQLException e) {
+            close();
+            throw e;
+        }
+
+        evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "connection-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::evictIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+
+    /**
+     * Borrows a connection, waiting up to the acquire timeout for one to become free.
+     * Closing the returned PooledConnection gives it back to the pool.
+     *
+     * @return a connection in auto-commit mode
+     * @throws SQLTimeoutException if no connection became free in time
+     */
+    public PooledConnection acquire() throws SQLException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMillis);
+
+        while (true) {
+            PooledConnection pc;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new SQLException("Connection pool is closed.");
+                    }
+                    pc = idle.pollFirst();
+                    if (pc != null || total < maxSize) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new SQLTimeoutException("Timed out after " + acquireTimeoutMillis + " ms waiting for a database connection.");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted while waiting for a database connection.", e);
+                    }
+                }
+                if (pc == null) {
+                    total++; // reserve the slot, then open outside the lock
+                }
+            }
+
+            if (pc == null) {
+                try {
+                    return open();
+                } catch (SQLException e) {
+                    synchronized (this) {
+                        total--;
+                        notifyAll();
+                    }
+                    throw e;
+                }
+            }
+
+            if (isUsable(pc)) {
+                return pc;
+            }
+            retire(pc);
+        }
+    }
+
+
+    /**
+     * Gives a connection back, resetting any transaction left open. Broken connections are retired.
+     */
+    void release(PooledConnection pc) {
+        boolean reusable;
+        try {
+            Connection con = pc.connection();
+            reusable = !con.isClosed();
+            if (reusable && !con.getAutoCommit()) {
+                con.rollback();
+                con.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            reusable = false;
+        }
+
+        synchronized (this) {
+            if (reusable && !closed) {
+                pc.lastUsed = System.nanoTime();
+                idle.addFirst(pc);
+                notifyAll();
+                return;
+            }
+        }
+        retire(pc);
+    }
+
+
+    /**
+     * Closes all idle connections and stops handing out new ones. Borrowed connections are
+     * closed when they come back.
+     */
+    @Override
+    public void close() {
+        Deque<PooledConnection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayDeque<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        for (PooledConnection pc : toClose) {
+            retire(pc);
+        }
+    }
+
+
+    /**
+     * @return short description of the pool state, e.g. for the status output
+     */
+    public synchronized String getStatus() {
+        return "Connections: " + total + " open, " + idle.size() + " idle (min " + minSize + ", max " + maxSize + ")";
+    }
+
+
+    /**
+     * @return hit/miss counts of the statement caches of all connections
+     */
+    public StatementCache.Stats getStatementCacheStats() {
+        return statementStats;
+    }
+
+
+    private PooledConnection open() throws SQLException {
+        Connection con = DriverManager.getConnection(url, userid, password);
+        return new PooledConnection(this, con, new StatementCache(con, statementCacheSize, statementStats, slowQueryLog));
+    }
+
+    // Connections that have been idle a while are checked with a round trip before being reused
+    private boolean isUsable(PooledConnection pc) {
+        try {
+            if (pc.connection().isClosed()) {
+                return false;
+            }
+            long idleNanos = System.nanoTime() - pc.lastUsed;
+            if (idleNanos < TimeUnit.MILLISECONDS.toNanos(validateAfterMillis)) {
+                return true;
+            }
+            return pc.connection().isValid(5);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void retire(PooledConnection pc) {
+        synchronized (this) {
+            total--;
+            notifyAll();
+        }
+        pc.closePhysical();
+    }
+
+    // Runs on the evictor thread: drop connections idle past the timeout, then top back up to minSize
+    private void evictIdle() {
+        Deque<PooledConnection> expired = new ArrayDeque<>();
+        long now = System.nanoTime();
+        synchronized (this) {
+            Iterator<PooledConnection> it = idle.descendingIterator(); // least recently used first
+            while (it.hasNext() && total - expired.size() > minSize) {
+                PooledConnection pc = it.next();
+                if (now - pc.lastUsed > TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis)) {
+                    it.remove();
+                    expired.add(pc);
+                }
+            }
+        }
+        for (PooledConnection pc : expired) {
+            retire(pc);
+        }
+
+        while (true) {
+            synchronized (this) {
+                if (closed || total >= minSize) {
+                    return;
+                }
+                total++;
+            }
+            try {
+                PooledConnection pc = open();
+                release(pc);
+            } catch (SQLException e) {
+                synchronized (this) {
+                    total--;
+                }
+                return; // database unreachable, try again next round
+            }
+        }
+    }
+}
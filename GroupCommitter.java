@@ -0,0 +1,258 @@
+/*
+ * GroupCommitter.java
+ */
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs loan operations from many threads in shared transactions, so a burst of borrows and
+ * returns pays for one commit (and one WAL flush) instead of one each.
+ *
+ * Callers queue an operation and wait. A committer thread takes the first queued operation,
+ * gathers whatever else arrives within windowMillis (up to maxBatch), and runs them one after
+ * another on one connection, each under its own savepoint. An operation that fails is rolled
+ * back to its savepoint and reported to its caller alone, after being run again if it failed
+ * with a serialization failure or deadlock; the rest commit together. If the commit itself
+ * fails that way the whole group is retried, otherwise every operation in it gets the error.
+ *
+ * Every caller is answered whatever goes wrong: an unexpected exception fails the group it
+ * happened in rather than the committer, and if the committer thread does stop, later calls to
+ * submit fail straight away instead of waiting for it.
+ */
+public class GroupCommitter implements Runnable, AutoCloseable {
+
+    /**
+     * One borrow or return, run in a transaction the caller opened
+     */
+    public interface Operation {
+        /**
+         * @return the text to hand back to the caller
+         * @throws SQLException to fail just this operation
+         */
+        String run(PooledConnection con) throws SQLException;
+    }
+
+    // A queued operation and what to tell its caller
+    private static class Request {
+        final Operation operation;
+        final Runnable committed;
+        final String errorPrefix;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        String pending;
+
+        Request(Operation operation, Runnable committed, String errorPrefix) {
+            this.operation = operation;
+            this.committed = committed;
+            this.errorPrefix = errorPrefix;
+        }
+    }
+
+    private final ConnectionPool pool;
+    private final long windowMillis;
+    private final int maxBatch;
+    private final int attempts;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    // Groups committed and operations in them, for getStats
+    private long groups = 0;
+    private long operations = 0;
+
+
+    /**
+     * @param pool - connections to run groups on
+     * @param windowMillis - how long to wait for more operations after the first
+     * @param maxBatch - most operations in one transaction
+     * @param attempts - tries of a group whose commit fails with a retryable error
+     */
+    public GroupCommitter(ConnectionPool pool, long windowMillis, int maxBatch, int attempts) {
+        this.pool = pool;
+        this.windowMillis = windowMillis;
+        this.maxBatch = maxBatch;
+        this.attempts = attempts;
+        this.thread = new Thread(this, "library-group-commit");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+
+    /**
+     * Queues an operation and waits for its group to commit
+     *
+     * @param operation - the statements to run
+     * @param committed - run once the operation's group has committed, e.g. to drop cached rows
+     * @param errorPrefix - put before the message of an SQLException, e.g. "Error borrowing book: "
+     * @return the operation's result, or the error
+     */
+    public String submit(Operation operation, Runnable committed, String errorPrefix) {
+        Request request = new Request(operation, committed, errorPrefix);
+        if (!running) {
+            return errorPrefix + "group commit has been shut down";
+        }
+        queue.add(request);
+        if (!running && queue.remove(request)) {
+            // Closed before the committer could see it
+            return errorPrefix + "group commit has been shut down";
+        }
+        try {
+            return request.result.get();
+        } catch (InterruptedException e) {
+            // The operation may still be committed by its group
+            Thread.currentThread().interrupt();
+            return errorPrefix + "interrupted while waiting for the group commit";
+        } catch (ExecutionException e) {
+            return errorPrefix + e.getCause().getMessage();
+        }
+    }
+
+    /**
+     * @return number of groups committed and their average size
+     */
+    public synchronized String getStats() {
+        return "Group commit: " + groups + " groups, " + operations + " operations"
+                + (groups == 0 ? "" : String.format(", %.1f per group", (double) operations / groups));
+    }
+
+
+    @Override
+    public void run() {
+        List<Request> batch = new ArrayList<>();
+        try {
+            while (running) {
+                try {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(windowMillis);
+                    while (batch.size() < maxBatch) {
+                        Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                        if (next == null) {
+                            break;
+                        }
+                        batch.add(next);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    commitGroup(batch);
+                } catch (RuntimeException e) {
+                    // Not knowing what was committed, tell whoever has no answer yet
+                    for (Request request : batch) {
+                        request.result.complete(request.errorPrefix + e);
+                    }
+                }
+                batch.clear();
+            }
+        } finally {
+            // Stopped by close() or by an Error: submit fails fast from now on, and anything
+            // still waiting is told it will not run
+            running = false;
+            batch.addAll(queue);
+            queue.clear();
+            for (Request request : batch) {
+                request.result.complete(request.errorPrefix + "group commit has been shut down");
+            }
+        }
+    }
+
+    // Runs the batch in one transaction and completes every request in it
+    private void commitGroup(List<Request> batch) {
+        for (int attempt = 1; ; attempt++) {
+            PooledConnection con = null;
+            try {
+                con = pool.acquire();
+                con.setAutoCommit(false);
+                Connection connection = con.connection();
+                int succeeded = 0;
+                for (Request request : batch) {
+                    if (runUnderSavepoint(connection, con, request)) {
+                        succeeded++;
+                    }
+                }
+                con.commit();
+                synchronized (this) {
+                    groups++;
+                    operations += succeeded;
+                }
+                for (Request request : batch) {
+                    if (!request.result.isDone()) {
+                        try {
+                            request.committed.run();
+                        } catch (RuntimeException e) {
+                            // Committed all the same; the other callers still get their answers
+                        }
+                        request.result.complete(request.pending);
+                    }
+                }
+                return;
+            } catch (SQLException | RuntimeException e) {
+                rollbackQuietly(con);
+                if (attempt < attempts && e instanceof SQLException && isRetryable((SQLException) e)) {
+                    // Failed operations have their answer already; the rest go again
+                    batch.removeIf(request -> request.result.isDone());
+                    continue;
+                }
+                String message = e instanceof SQLException ? e.getMessage() : e.toString();
+                for (Request request : batch) {
+                    request.result.complete(request.errorPrefix + message);
+                }
+                return;
+            } finally {
+                if (con != null) {
+                    con.close();
+                }
+            }
+        }
+    }
+
+    // Runs one operation under a savepoint, running it again after a serialization failure or
+    // deadlock. On failure it is rolled back to the savepoint and its caller answered; returns
+    // true if it succeeded, to be answered once the group commits.
+    private boolean runUnderSavepoint(Connection connection, PooledConnection con, Request request) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            Savepoint savepoint = connection.setSavepoint();
+            try {
+                request.pending = request.operation.run(con);
+                connection.releaseSavepoint(savepoint);
+                return true;
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback(savepoint);
+                if (attempt < attempts && e instanceof SQLException && isRetryable((SQLException) e)) {
+                    continue;
+                }
+                String message = e instanceof SQLException ? e.getMessage() : e.toString();
+                request.pending = request.errorPrefix + message;
+                request.result.complete(request.pending);
+                return false;
+            }
+        }
+    }
+
+    private static boolean isRetryable(SQLException e) {
+        String state = e.getSQLState();
+        return "40001".equals(state) || "40P01".equals(state);
+    }
+
+    private static void rollbackQuietly(PooledConnection con) {
+        if (con != null) {
+            try {
+                con.rollback();
+            } catch (SQLException e) {
+                // The pool retires connections it cannot reset
+            }
+        }
+    }
+
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * IdIndex.java
+ */
+
+import java.sql.*;
+import java.util.Arrays;
+
+/**
+ * Sorted ISBNs or customer IDs with a short label for each, e.g. the title or name, kept in
+ * parallel arrays for type-ahead completion of ID fields.
+ *
+ * The IDs starting with a typed prefix like "12" are the ranges 12, 120-129, 1200-1299 and so
+ * on, each found with a binary search, so a lookup touches no boxed values and no database.
+ * Immutable once loaded; a fresh index is loaded to pick up changes.
+ */
+public class IdIndex {
+
+    /**
+     * What an index holds and the query that loads it
+     */
+    public enum Kind {
+        BOOKS("SELECT isbn, trim(title) FROM book ORDER BY isbn"),
+        CUSTOMERS("SELECT customerid, trim(f_name) || ' ' || trim(l_name) FROM customer ORDER BY customerid");
+
+        private final String query;
+
+        Kind(String query) {
+            this.query = query;
+        }
+    }
+
+    private final int[] ids;
+    private final String[] labels;
+    private final long loadedAt;
+
+
+    private IdIndex(int[] ids, String[] labels) {
+        this.ids = ids;
+        this.labels = labels;
+        this.loadedAt = System.currentTimeMillis();
+    }
+
+
+    /**
+     * Reads every ID and label of the kind
+     */
+    public static IdIndex load(Connection con, Kind kind) throws SQLException {
+        int[] ids = new int[1024];
+        String[] labels = new String[1024];
+        int n = 0;
+        try (PreparedStatement stmt = con.prepareStatement(kind.query);
+             ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                LibraryMetrics.rowRead();
+                if (n == ids.length) {
+                    ids = Arrays.copyOf(ids, n * 2);
+                    labels = Arrays.copyOf(labels, n * 2);
+                }
+                ids[n] = rs.getInt(1);
+                labels[n] = rs.getString(2);
+                n++;
+            }
+        }
+        return new IdIndex(Arrays.copyOf(ids, n), Arrays.copyOf(labels, n));
+    }
+
+
+    /**
+     * Finds the IDs whose decimal form starts with prefix, shortest first
+     *
+     * @param prefix - digits typed so far
+     * @param positions - filled with positions of matches, for getId and getLabel
+     * @return number of matches found, at most positions.length
+     */
+    public int complete(String prefix, int[] positions) {
+        if (prefix.isEmpty() || prefix.length() > 10 || (prefix.length() > 1 && prefix.charAt(0) == '0')) {
+            return 0;
+        }
+        long start = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c < '0' || c > '9') {
+                return 0;
+            }
+            start = start * 10 + (c - '0');
+        }
+        // "0" only ever matches 0 itself
+        long maxScale = prefix.charAt(0) == '0' ? 1 : Long.MAX_VALUE;
+
+        int found = 0;
+        for (long scale = 1; scale <= maxScale && start * scale <= Integer.MAX_VALUE && found < positions.length; scale *= 10) {
+            int from = lowerBound(start * scale);
+            int to = lowerBound((start + 1) * scale);
+            for (int i = from; i < to && found < positions.length; i++) {
+                positions[found++] = i;
+            }
+        }
+        return found;
+    }
+
+    public int getId(int position) {
+        return ids[position];
+    }
+
+    public String getLabel(int position) {
+        return labels[position];
+    }
+
+    /**
+     * @return true if the ID is in the index
+     */
+    public boolean contains(int id) {
+        return Arrays.binarySearch(ids, id) >= 0;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when the index was loaded
+     */
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+
+    // Position of the first id >= value
+    private int lowerBound(long value) {
+        if (value > Integer.MAX_VALUE) {
+            return ids.length;
+        }
+        int at = Arrays.binarySearch(ids, (int) value);
+        return at >= 0 ? at : -at - 1;
+    }
+}
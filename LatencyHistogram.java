@@ -0,0 +1,91 @@
+/*
+ * LatencyHistogram.java
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in the style of HdrHistogram: values are counted in buckets
+ * that double in width, each split into 64 linear sub-buckets, so any recorded value is
+ * reported to within about 1.5% while the whole range of a long fits in a few thousand counters.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_HALF_MAGNITUDE = 6;
+    private static final int SUB_BUCKET_HALF_COUNT = 1 << SUB_BUCKET_HALF_MAGNITUDE; // 64
+    private static final int SUB_BUCKET_MASK = (SUB_BUCKET_HALF_COUNT << 1) - 1;    // 127
+    private static final int BUCKETS = 64 - SUB_BUCKET_HALF_MAGNITUDE;
+
+    private final AtomicLongArray counts = new AtomicLongArray((BUCKETS + 1) * SUB_BUCKET_HALF_COUNT);
+
+
+    /**
+     * Counts one value, e.g. a duration in nanoseconds. Negative values count as 0.
+     */
+    public void record(long value) {
+        counts.incrementAndGet(indexOf(Math.max(0, value)));
+    }
+
+    /**
+     * @param percentile - between 0 and 100, e.g. 99.9
+     * @return the value at or below which that percentage of recorded values fall, 0 if empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return highestValueAt(i);
+            }
+        }
+        return highestValueAt(counts.length() - 1);
+    }
+
+    /**
+     * @return the largest value recorded, to within the bucket precision
+     */
+    public long getMax() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (counts.get(i) != 0) {
+                return highestValueAt(i);
+            }
+        }
+        return 0;
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+
+
+    private static int indexOf(long value) {
+        int bucket = 63 - Long.numberOfLeadingZeros(value | SUB_BUCKET_MASK) - SUB_BUCKET_HALF_MAGNITUDE;
+        int subBucket = (int) (value >>> bucket);
+        return ((bucket + 1) << SUB_BUCKET_HALF_MAGNITUDE) + (subBucket - SUB_BUCKET_HALF_COUNT);
+    }
+
+    // Largest value that would have been counted at this index
+    private static long highestValueAt(int index) {
+        int bucket = (index >> SUB_BUCKET_HALF_MAGNITUDE) - 1;
+        int subBucket = (index & (SUB_BUCKET_HALF_COUNT - 1)) + SUB_BUCKET_HALF_COUNT;
+        if (bucket < 0) {
+            return index; // first bucket is exact
+        }
+        return ((long) subBucket << bucket) + (1L << bucket) - 1;
+    }
+}
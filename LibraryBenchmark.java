@@ -0,0 +1,553 @@
+/*
+ * LibraryBenchmark.java
+ */
+
+import java.lang.management.ManagementFactory;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures every LibraryModel operation against a local database, without the UI.
+ *
+ * Each operation is run for a number of warm-up iterations and then measured iterations of a
+ * fixed duration, on one or more threads. For each one it reports throughput, average and
+ * maximum latency, and bytes allocated per call (from the JVM's per-thread allocation counter,
+ * the same figure JMH's gc profiler reports). The model runs headless, so borrowBook/returnBook
+ * skip their confirmation dialog.
+ *
+ * Usage:
+ *     java -cp .:postgresql.jar LibraryBenchmark --url jdbc:postgresql://localhost/library_bench
+ *          --user me --password secret --seed --books 10000 --authors 2000 --customers 5000 --loans 2000
+ *
+ * Options (defaults in brackets):
+ *     --url, --user, --password   database to run against [jdbc:postgresql://localhost/library_bench]
+ *     --seed                      drop and recreate the library tables and fill them with generated rows
+ *     --books, --authors, --customers, --loans   rows to generate with --seed [10000, 2000, 5000, 2000]
+ *     --warmup, --iterations      warm-up and measured iterations [3, 5]
+ *     --time                      seconds per iteration [2]
+ *     --threads                   threads calling the model at once [1]
+ *     --ops                       comma separated operations to run [all], see OPERATIONS
+ *     --hotCopies, --stripes      copies of the two hot books seeded for the contention test, and
+ *                                 stripes the second one is split into [10000, 16]
+ *
+ * --seed drops and recreates the library tables. It refuses to when any of them holds rows it did
+ * not seed itself (it leaves a library_bench_seeded table behind as its mark), so it cannot wipe
+ * a real library database by mistake; still, only point it at a scratch database.
+ * Run with -Dlibrary.cache.maxChars=0 to measure lookups without the result cache.
+ *
+ * hotBorrowReturn:singleRow and hotBorrowReturn:striped have every thread borrow and return the
+ * same popular title, kept in one book row or split over book_stripe rows (library_stripes.sql).
+ * Running them with --threads 1, 4, 16, ... shows how each scales under contention for one book.
+ * Only the second hot book is striped, so borrowReturn:<MODE> and hotBorrowReturn:singleRow run
+ * each mode's own book row statements; figures taken before the stripe fallback was limited to
+ * books with none left in their row measured the striped path for every mode and are not
+ * comparable.
+ *
+ * The same operations run under JMH from jmh/ (see jmh/pom.xml), which forks a JVM per
+ * operation and reports allocation with -prof gc:
+ *     mvn -f jmh/pom.xml package
+ *     java -jar jmh/target/benchmarks.jar -p url=jdbc:postgresql://localhost/library_bench -prof gc
+ * Prefer those figures. This loop is kept as a fallback for machines without Maven.
+ *
+ * This is a plain timing loop, not JMH, and its figures should be read with that in mind:
+ *   - every operation runs in the same JVM one after another, so JIT profiles, caches and GC state
+ *     carry over from one operation to the next (JMH forks a fresh JVM per benchmark); run a
+ *     single operation with --ops when a number matters
+ *   - there is no dead-code or constant-folding protection beyond using each result string
+ *   - allocation is counted on the calling threads only, so work done on the model's own threads
+ *     (the group commit committer, replica sync, snapshot refresh, change listener) is missing
+ *     from alloc B/op, which understates GROUP_COMMIT in particular
+ *   - latency is wall clock per call, including time spent waiting for pooled connections
+ */
+public class LibraryBenchmark {
+
+    /**
+     * One benchmarked call. prepare() runs outside the timed region, e.g. to insert the row a
+     * delete will remove, and returns the id to call the model with.
+     */
+    interface Operation {
+        default int prepare(Connection con, Random random, Sizes sizes) throws SQLException {
+            return random.nextInt(sizes.books) + 1;
+        }
+
+        String call(LibraryModel model, int id, Random random, Sizes sizes);
+    }
+
+    /**
+     * Number of rows of each kind in the seeded database
+     */
+    static class Sizes {
+        int books = 10000;
+        int authors = 2000;
+        int customers = 5000;
+        int loans = 2000;
+        int hotCopies = 10000;
+        int stripes = 16;
+    }
+
+    // The popular titles of the contention test, outside the range of the generated books
+    static final int HOT_ISBN = 0;
+    static final int STRIPED_HOT_ISBN = -1;
+
+    static final Map<String, Operation> OPERATIONS = new LinkedHashMap<>();
+
+    static {
+        OPERATIONS.put("bookLookup", (m, id, r, s) -> m.bookLookup(id));
+        OPERATIONS.put("showCatalogue", (m, id, r, s) -> m.showCatalogue());
+        OPERATIONS.put("nextCataloguePage", (m, id, r, s) -> m.nextCataloguePage(null, 200).getText());
+        OPERATIONS.put("showLoanedBooks", (m, id, r, s) -> m.showLoanedBooks());
+        OPERATIONS.put("showAuthor", (m, id, r, s) -> m.showAuthor(r.nextInt(s.authors) + 1));
+        OPERATIONS.put("showAllAuthors", (m, id, r, s) -> m.showAllAuthors());
+        OPERATIONS.put("showCustomer", (m, id, r, s) -> m.showCustomer(r.nextInt(s.customers) + 1));
+        OPERATIONS.put("showAllCustomers", (m, id, r, s) -> m.showAllCustomers());
+        for (LoanMode mode : LoanMode.values()) {
+            OPERATIONS.put("borrowReturn:" + mode.name(), (m, id, r, s) -> borrowAndReturn(m, mode, id, r, s));
+        }
+        OPERATIONS.put("hotBorrowReturn:singleRow", (m, id, r, s) -> borrowAndReturn(m, LoanMode.OPTIMISTIC, HOT_ISBN, r, s));
+        OPERATIONS.put("hotBorrowReturn:striped", (m, id, r, s) -> borrowAndReturn(m, LoanMode.STRIPED, STRIPED_HOT_ISBN, r, s));
+        OPERATIONS.put("deleteBook", new Operation() {
+            public int prepare(Connection con, Random random, Sizes sizes) throws SQLException {
+                int isbn = nextScratchId();
+                execute(con, "INSERT INTO book (isbn, title, edition_no, numofcop, numleft) VALUES (?, 'Scratch', 1, 1, 1)", isbn);
+                return isbn;
+            }
+            public String call(LibraryModel model, int id, Random random, Sizes sizes) {
+                return model.deleteBook(id);
+            }
+        });
+        OPERATIONS.put("deleteAuthor", new Operation() {
+            public int prepare(Connection con, Random random, Sizes sizes) throws SQLException {
+                int authorID = nextScratchId();
+                execute(con, "INSERT INTO author (authorid, name, surname) VALUES (?, 'Scratch', 'Author')", authorID);
+                return authorID;
+            }
+            public String call(LibraryModel model, int id, Random random, Sizes sizes) {
+                return model.deleteAuthor(id);
+            }
+        });
+        OPERATIONS.put("deleteCus", new Operation() {
+            public int prepare(Connection con, Random random, Sizes sizes) throws SQLException {
+                int customerID = nextScratchId();
+                execute(con, "INSERT INTO customer (customerid, l_name, f_name, city) VALUES (?, 'Scratch', 'Customer', 'Wellington')", customerID);
+                return customerID;
+            }
+            public String call(LibraryModel model, int id, Random random, Sizes sizes) {
+                return model.deleteCus(id);
+            }
+        });
+    }
+
+    // Ids for rows inserted just to be deleted, well above the seeded ranges
+    private static int scratchId = 1000000000;
+
+    private static synchronized int nextScratchId() {
+        return scratchId++;
+    }
+
+    // Borrow a random book for a random customer in the given mode and give it straight back
+    private static String borrowAndReturn(LibraryModel model, LoanMode mode, int isbn, Random random, Sizes sizes) {
+        model.setLoanMode(mode);
+        int customerID = random.nextInt(sizes.customers) + 1;
+        String borrowed = model.borrowBook(isbn, customerID, 1, 0, 2030);
+        if (borrowed.startsWith("Error")) {
+            return borrowed;
+        }
+        return model.returnBook(isbn, customerID);
+    }
+
+
+    /**
+     * Totals for one operation on one thread
+     */
+    static class Result {
+        long calls;
+        long errors;
+        long nanos;
+        long maxNanos;
+        long allocatedBytes;
+
+        void add(Result other) {
+            calls += other.calls;
+            errors += other.errors;
+            nanos += other.nanos;
+            maxNanos = Math.max(maxNanos, other.maxNanos);
+            allocatedBytes += other.allocatedBytes;
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        String url = "jdbc:postgresql://localhost/library_bench";
+        String user = System.getProperty("user.name");
+        String password = "";
+        boolean seed = false;
+        int warmup = 3;
+        int iterations = 5;
+        int seconds = 2;
+        int threads = 1;
+        String ops = null;
+        Sizes sizes = new Sizes();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url": url = args[++i]; break;
+                case "--user": user = args[++i]; break;
+                case "--password": password = args[++i]; break;
+                case "--seed": seed = true; break;
+                case "--books": sizes.books = Integer.parseInt(args[++i]); break;
+                case "--authors": sizes.authors = Integer.parseInt(args[++i]); break;
+                case "--customers": sizes.customers = Integer.parseInt(args[++i]); break;
+                case "--loans": sizes.loans = Integer.parseInt(args[++i]); break;
+                case "--hotCopies": sizes.hotCopies = Integer.parseInt(args[++i]); break;
+                case "--stripes": sizes.stripes = Integer.parseInt(args[++i]); break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "--time": seconds = Integer.parseInt(args[++i]); break;
+                case "--threads": threads = Integer.parseInt(args[++i]); break;
+                case "--ops": ops = args[++i]; break;
+                default:
+                    System.err.println("Unknown option " + args[i] + ", see the comment at the top of LibraryBenchmark.java");
+                    System.exit(1);
+            }
+        }
+
+        LibraryModel model = openModel(url, user, password, seed, sizes, threads);
+
+        List<String> names = new ArrayList<>(ops == null ? OPERATIONS.keySet() : List.of(ops.split(",")));
+        System.out.printf("%-30s %12s %12s %12s %14s %8s%n", "Operation", "ops/s", "avg us", "max us", "alloc B/op", "errors");
+        for (String name : names) {
+            Operation op = OPERATIONS.get(name);
+            if (op == null) {
+                System.err.println("No such operation: " + name);
+                continue;
+            }
+            for (int i = 0; i < warmup; i++) {
+                runIteration(model, url, user, password, op, sizes, threads, seconds);
+            }
+            Result total = new Result();
+            for (int i = 0; i < iterations; i++) {
+                total.add(runIteration(model, url, user, password, op, sizes, threads, seconds));
+            }
+            double avgNanos = total.calls == 0 ? 0 : (double) total.nanos / total.calls;
+            System.out.printf("%-30s %12.1f %12.1f %12.1f %14d %8d%n", name,
+                    avgNanos == 0 ? 0 : threads * 1e9 / avgNanos,
+                    avgNanos / 1000, total.maxNanos / 1000.0,
+                    total.calls == 0 ? 0 : total.allocatedBytes / total.calls,
+                    total.errors);
+        }
+        model.closeDBConnection();
+    }
+
+
+    // Seeds or counts the database, then opens a model on it sized for the given threads
+    private static LibraryModel openModel(String url, String user, String password, boolean seed,
+                                          Sizes sizes, int threads) throws SQLException, ClassNotFoundException {
+        // Listening for changes and snapshot rewrites only add noise here
+        System.setProperty("library.notify", System.getProperty("library.notify", "false"));
+        System.setProperty("library.snapshot", System.getProperty("library.snapshot", "false"));
+        System.setProperty("library.pool.maxSize", System.getProperty("library.pool.maxSize", String.valueOf(threads + 2)));
+
+        try (Connection con = DriverManager.getConnection(url, user, password)) {
+            if (seed) {
+                System.out.println("Seeding " + sizes.books + " books, " + sizes.authors + " authors, "
+                        + sizes.customers + " customers, " + sizes.loans + " loans");
+                seed(con, sizes);
+            } else {
+                sizes.books = count(con, "book WHERE isbn > 0");
+                sizes.authors = count(con, "author");
+                sizes.customers = count(con, "customer");
+                sizes.loans = count(con, "cust_book");
+            }
+        }
+        // After seeding, so the model sees the stripe table
+        return new LibraryModel(url, user, password);
+    }
+
+
+    /**
+     * One operation on one model, for the JMH benchmarks in jmh/. Classes in a package cannot
+     * name those of the default package, so JMH sees this only through the JDK interfaces:
+     * getAsInt() runs prepare() outside the measured call, apply(id) is the measured call and
+     * close() closes the model. Each calling thread gets its own Random and setup connection.
+     */
+    static class Fixture implements IntSupplier, IntFunction<String>, AutoCloseable {
+        private final LibraryModel model;
+        private final Operation op;
+        private final Sizes sizes;
+        private final String url;
+        private final String user;
+        private final String password;
+        private final List<Connection> setups = new ArrayList<>();
+        private final ThreadLocal<Random> random = ThreadLocal.withInitial(() -> new Random(System.nanoTime()));
+        private final ThreadLocal<Connection> setup = ThreadLocal.withInitial(this::openSetup);
+
+        Fixture(LibraryModel model, Operation op, Sizes sizes, String url, String user, String password) {
+            this.model = model;
+            this.op = op;
+            this.sizes = sizes;
+            this.url = url;
+            this.user = user;
+            this.password = password;
+        }
+
+        private Connection openSetup() {
+            try {
+                Connection con = DriverManager.getConnection(url, user, password);
+                synchronized (setups) {
+                    setups.add(con);
+                }
+                return con;
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot open a setup connection: " + e.getMessage(), e);
+            }
+        }
+
+        public int getAsInt() {
+            try {
+                return op.prepare(setup.get(), random.get(), sizes);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot prepare the call: " + e.getMessage(), e);
+            }
+        }
+
+        public String apply(int id) {
+            return op.call(model, id, random.get(), sizes);
+        }
+
+        public void close() throws SQLException {
+            synchronized (setups) {
+                for (Connection con : setups) {
+                    con.close();
+                }
+            }
+            model.closeDBConnection();
+        }
+    }
+
+    /**
+     * Opens the fixture for one entry of OPERATIONS, seeding the database first if asked
+     *
+     * @param threads - threads that will call it, to size the pool
+     */
+    public static Object openFixture(String url, String user, String password, boolean seed,
+                                     String operation, int threads) throws SQLException, ClassNotFoundException {
+        Operation op = OPERATIONS.get(operation);
+        if (op == null) {
+            throw new IllegalArgumentException("No such operation: " + operation);
+        }
+        Sizes sizes = new Sizes();
+        return new Fixture(openModel(url, user, password, seed, sizes, threads), op, sizes, url, user, password);
+    }
+
+
+    // Runs the operation on every thread for the given time and adds up their results
+    private static Result runIteration(LibraryModel model, String url, String user, String password,
+                                       Operation op, Sizes sizes, int threads, int seconds) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            long end = System.nanoTime() + seconds * 1000000000L;
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final long seedValue = t * 7919L + System.nanoTime();
+                futures.add(executor.submit((Callable<Result>) () -> {
+                    com.sun.management.ThreadMXBean mx =
+                            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+                    long threadId = Thread.currentThread().getId();
+                    Random random = new Random(seedValue);
+                    Result result = new Result();
+                    try (Connection setup = DriverManager.getConnection(url, user, password)) {
+                        while (System.nanoTime() < end) {
+                            int id = op.prepare(setup, random, sizes);
+                            long allocated = mx.getThreadAllocatedBytes(threadId);
+                            long start = System.nanoTime();
+                            String output = op.call(model, id, random, sizes);
+                            long elapsed = System.nanoTime() - start;
+                            result.allocatedBytes += mx.getThreadAllocatedBytes(threadId) - allocated;
+                            result.nanos += elapsed;
+                            result.maxNanos = Math.max(result.maxNanos, elapsed);
+                            result.calls++;
+                            if (output.startsWith("Error")) {
+                                result.errors++;
+                            }
+                        }
+                    }
+                    return result;
+                }));
+            }
+            Result total = new Result();
+            for (Future<Result> future : futures) {
+                total.add(future.get());
+            }
+            return total;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+    // Recreates the library tables and fills them with generated rows
+    private static void seed(Connection con, Sizes sizes) throws SQLException {
+        refuseToDropRealData(con);
+        try (Statement stmt = con.createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS book_stripe, cust_book, book_author, customer, book, author CASCADE");
+            stmt.execute("CREATE TABLE IF NOT EXISTS library_bench_seeded (seeded timestamptz NOT NULL DEFAULT now())");
+            stmt.execute("CREATE TABLE author (authorid integer PRIMARY KEY, name char(15), surname char(15) NOT NULL)");
+            stmt.execute("CREATE TABLE book (isbn integer PRIMARY KEY, title char(60) NOT NULL, edition_no smallint, " +
+                    "numofcop smallint NOT NULL DEFAULT 1, numleft smallint NOT NULL DEFAULT 1)");
+            stmt.execute("CREATE TABLE book_author (isbn integer REFERENCES book ON DELETE CASCADE, " +
+                    "authorid integer REFERENCES author ON DELETE CASCADE, authorseqno integer DEFAULT 1, " +
+                    "PRIMARY KEY (isbn, authorid))");
+            stmt.execute("CREATE TABLE customer (customerid integer PRIMARY KEY, l_name char(15) NOT NULL, " +
+                    "f_name char(15), city char(15))");
+            stmt.execute("CREATE TABLE cust_book (isbn integer REFERENCES book ON DELETE CASCADE, duedate date, " +
+                    "customerid integer REFERENCES customer ON DELETE CASCADE, PRIMARY KEY (isbn, customerid))");
+            stmt.execute("CREATE TABLE book_stripe (isbn integer NOT NULL REFERENCES book ON DELETE CASCADE, " +
+                    "stripe integer NOT NULL, numleft integer NOT NULL CHECK (numleft >= 0), PRIMARY KEY (isbn, stripe))");
+        }
+
+        con.setAutoCommit(false);
+        Random random = new Random(42);
+        try (PreparedStatement author = con.prepareStatement("INSERT INTO author VALUES (?, ?, ?)");
+             PreparedStatement book = con.prepareStatement("INSERT INTO book VALUES (?, ?, ?, ?, ?)");
+             PreparedStatement bookAuthor = con.prepareStatement("INSERT INTO book_author VALUES (?, ?, ?) ON CONFLICT DO NOTHING");
+             PreparedStatement customer = con.prepareStatement("INSERT INTO customer VALUES (?, ?, ?, ?)");
+             PreparedStatement loan = con.prepareStatement("INSERT INTO cust_book VALUES (?, ?, ?) ON CONFLICT DO NOTHING")) {
+            for (int id = 1; id <= sizes.authors; id++) {
+                author.setInt(1, id);
+                author.setString(2, "Name" + id);
+                author.setString(3, "Surname" + id);
+                author.addBatch();
+            }
+            author.executeBatch();
+
+            for (int isbn = 1; isbn <= sizes.books; isbn++) {
+                int copies = 1 + random.nextInt(5);
+                book.setInt(1, isbn);
+                book.setString(2, "Title of book " + isbn);
+                book.setInt(3, 1 + random.nextInt(3));
+                book.setInt(4, copies);
+                book.setInt(5, copies);
+                book.addBatch();
+                int authors = 1 + random.nextInt(3);
+                for (int seq = 1; seq <= authors && sizes.authors > 0; seq++) {
+                    bookAuthor.setInt(1, isbn);
+                    bookAuthor.setInt(2, random.nextInt(sizes.authors) + 1);
+                    bookAuthor.setInt(3, seq);
+                    bookAuthor.addBatch();
+                }
+                if (isbn % 1000 == 0) {
+                    book.executeBatch();
+                    bookAuthor.executeBatch();
+                }
+            }
+            book.executeBatch();
+            bookAuthor.executeBatch();
+
+            for (int id = 1; id <= sizes.customers; id++) {
+                customer.setInt(1, id);
+                customer.setString(2, "Last" + id);
+                customer.setString(3, "First" + id);
+                customer.setString(4, "City" + (id % 50));
+                customer.addBatch();
+            }
+            customer.executeBatch();
+
+            for (int i = 0; i < sizes.loans && sizes.books > 0 && sizes.customers > 0; i++) {
+                loan.setInt(1, random.nextInt(sizes.books) + 1);
+                loan.setDate(2, Date.valueOf("2030-01-01"));
+                loan.setInt(3, random.nextInt(sizes.customers) + 1);
+                loan.addBatch();
+            }
+            loan.executeBatch();
+        }
+        try (Statement stmt = con.createStatement()) {
+            // Keep the copies left consistent with the loans just made
+            stmt.execute("UPDATE book b SET numofcop = GREATEST(b.numofcop, l.n), numleft = GREATEST(b.numofcop, l.n) - l.n " +
+                    "FROM (SELECT isbn, count(*) AS n FROM cust_book GROUP BY isbn) l WHERE b.isbn = l.isbn");
+        }
+
+        // The two hot books: all copies in the book row, and the same copies spread over stripes
+        try (PreparedStatement hot = con.prepareStatement("INSERT INTO book VALUES (?, ?, 1, ?, ?)");
+             PreparedStatement stripe = con.prepareStatement("INSERT INTO book_stripe " +
+                     "SELECT ?, s, ? / ? + CASE WHEN s < ? % ? THEN 1 ELSE 0 END FROM generate_series(0, ? - 1) s")) {
+            int stripes = Math.max(sizes.stripes, 1);
+            hot.setInt(1, HOT_ISBN);
+            hot.setString(2, "Hot new release");
+            hot.setInt(3, sizes.hotCopies);
+            hot.setInt(4, sizes.hotCopies);
+            hot.executeUpdate();
+            hot.setInt(1, STRIPED_HOT_ISBN);
+            hot.setString(2, "Hot new release (striped)");
+            hot.setInt(4, 0);
+            hot.executeUpdate();
+            stripe.setInt(1, STRIPED_HOT_ISBN);
+            stripe.setInt(2, sizes.hotCopies);
+            stripe.setInt(3, stripes);
+            stripe.setInt(4, sizes.hotCopies);
+            stripe.setInt(5, stripes);
+            stripe.setInt(6, stripes);
+            stripe.executeUpdate();
+        }
+        con.commit();
+        con.setAutoCommit(true);
+        try (Statement stmt = con.createStatement()) {
+            stmt.execute("ANALYZE");
+        }
+    }
+
+    // Throws unless every library table is missing or empty, or was filled by an earlier --seed
+    private static void refuseToDropRealData(Connection con) throws SQLException {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT to_regclass('library_bench_seeded') IS NOT NULL")) {
+            rs.next();
+            if (rs.getBoolean(1)) {
+                return;
+            }
+        }
+        for (String table : new String[]{"book", "author", "book_author", "customer", "cust_book", "book_stripe"}) {
+            boolean exists;
+            try (PreparedStatement stmt = con.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+                stmt.setString(1, table);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    exists = rs.getBoolean(1);
+                }
+            }
+            if (exists) {
+                try (Statement stmt = con.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT EXISTS (SELECT 1 FROM " + table + ")")) {
+                    rs.next();
+                    if (rs.getBoolean(1)) {
+                        throw new SQLException("Refusing to --seed: table " + table + " already has rows that "
+                                + "LibraryBenchmark did not create. Point --url at a scratch database.");
+                    }
+                }
+            }
+        }
+    }
+
+    private static int count(Connection con, String table) throws SQLException {
+        try (Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT count(*) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static void execute(Connection con, String sql, int id) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement(sql)) {
+            stmt.setInt(1, id);
+            stmt.executeUpdate();
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * LibraryImporter.java
+ */
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyManager;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+
+/**
+ * Loads CSV files into book, author, book_author or customer with COPY.
+ *
+ * The file is streamed by the driver into a temporary table, then merged into the real table
+ * with one INSERT ... ON CONFLICT DO UPDATE, so existing rows are updated and the file is
+ * never held in memory. If a key appears more than once in the file its last row wins. The
+ * whole import is one transaction: a bad row anywhere leaves the table as it was.
+ *
+ * Files start with a header line and have the table's columns in the order listed in Table.
+ *
+ * To try it against a local database, run
+ *     java LibraryImporter jdbc:postgresql://localhost/library user password book books.csv
+ */
+public class LibraryImporter {
+
+    /**
+     * Tables that can be imported, with their columns in file order
+     */
+    public enum Table {
+        BOOK("book", new String[]{"isbn"}, "isbn", "title", "edition_no", "numofcop", "numleft"),
+        AUTHOR("author", new String[]{"authorid"}, "authorid", "name", "surname"),
+        BOOK_AUTHOR("book_author", new String[]{"isbn", "authorid"}, "isbn", "authorid", "authorseqno"),
+        CUSTOMER("customer", new String[]{"customerid"}, "customerid", "l_name", "f_name", "city");
+
+        private final String name;
+        private final String[] keys;
+        private final String[] columns;
+
+        Table(String name, String[] keys, String... columns) {
+            this.name = name;
+            this.keys = keys;
+            this.columns = columns;
+        }
+
+        /**
+         * @return columns a file must have, in order
+         */
+        public String getColumns() {
+            return String.join(",", columns);
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+
+    /**
+     * Imports one file in a single transaction and commits it
+     *
+     * @param con - connection to use, left with auto-commit off
+     * @param table
+     * @param file - CSV with a header line
+     * @return result - rows read and merged, and the throughput
+     */
+    public String importFile(Connection con, Table table, Path file) throws SQLException, IOException {
+        String staging = "import_" + table.name;
+        String columns = String.join(", ", table.columns);
+        String keys = String.join(", ", table.keys);
+
+        long start = System.nanoTime();
+        con.setAutoCommit(false);
+        try {
+            try (Statement stmt = con.createStatement()) {
+                // No constraints or indexes on the copy, so COPY only has to append
+                stmt.execute("CREATE TEMP TABLE " + staging + " (LIKE " + table.name + " INCLUDING DEFAULTS) ON COMMIT DROP");
+            }
+
+            CopyManager copy = con.unwrap(PGConnection.class).getCopyAPI();
+            long copied;
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                copied = copy.copyIn("COPY " + staging + " (" + columns + ") FROM STDIN WITH (FORMAT csv, HEADER true)", reader);
+            }
+
+            long merged;
+            try (Statement stmt = con.createStatement()) {
+                // ctid order is file order, so DISTINCT ON keeps the last row for each key
+                merged = stmt.executeUpdate(
+                        "INSERT INTO " + table.name + " (" + columns + ") " +
+                        "SELECT DISTINCT ON (" + keys + ") " + columns + " FROM " + staging + " " +
+                        "ORDER BY " + keys + ", ctid DESC " +
+                        "ON CONFLICT (" + keys + ") DO UPDATE SET " + updateList(table));
+            }
+            con.commit();
+
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return String.format("Import:\n    %d rows read from %s, %d rows inserted or updated in %s (%.0f rows/s)",
+                    copied, file, merged, table, copied / Math.max(seconds, 1e-9));
+        } catch (SQLException | IOException e) {
+            con.rollback();
+            throw e;
+        }
+    }
+
+    // Every non-key column takes the imported value
+    private static String updateList(Table table) {
+        StringBuilder set = new StringBuilder();
+        outer:
+        for (String column : table.columns) {
+            for (String key : table.keys) {
+                if (key.equals(column)) {
+                    continue outer;
+                }
+            }
+            if (set.length() > 0) {
+                set.append(", ");
+            }
+            set.append(column).append(" = EXCLUDED.").append(column);
+        }
+        return set.toString();
+    }
+
+
+    /**
+     * Imports one file from the command line, for loading a local database
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 5) {
+            System.err.println("Usage: java LibraryImporter <jdbc url> <user> <password> <table> <csv file>");
+            System.exit(1);
+        }
+        Class.forName("org.postgresql.Driver");
+        try (Connection con = DriverManager.getConnection(args[0], args[1], args[2])) {
+            Table table = Table.valueOf(args[3].toUpperCase());
+            System.out.println(new LibraryImporter().importFile(con, table, Paths.get(args[4])));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * LibraryMetrics.java
+ */
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Collects OperationMetrics for every public LibraryModel operation and publishes each one
+ * through JMX.
+ *
+ * Rows are counted by the operation itself calling rowRead() as it walks a result set; the count
+ * is kept per thread, so concurrent operations do not mix their rows up. A call counts as an error
+ * if it throws or returns one of the model's "Error ..." messages.
+ */
+public class LibraryMetrics {
+
+    private static final ThreadLocal<long[]> ROWS = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final Map<String, OperationMetrics> operations = new ConcurrentSkipListMap<>();
+
+
+    /**
+     * Counts one row read by the operation running on this thread
+     */
+    public static void rowRead() {
+        ROWS.get()[0]++;
+    }
+
+
+    /**
+     * Runs an operation that returns its output as a String, recording its metrics
+     */
+    public String time(String name, Supplier<String> operation) {
+        return time(name, operation, Function.identity());
+    }
+
+    /**
+     * Runs an operation, recording its metrics
+     *
+     * @param name - operation name, e.g. "bookLookup"
+     * @param operation
+     * @param output - gets the text the result will show, to measure and check for errors
+     * @return whatever the operation returned
+     */
+    public <T> T time(String name, Supplier<T> operation, Function<T, String> output) {
+        OperationMetrics metrics = operations.computeIfAbsent(name, this::register);
+        long[] rows = ROWS.get();
+        long rowsBefore = rows[0];
+        long start = System.nanoTime();
+        T result = null;
+        try {
+            result = operation.get();
+            return result;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            String text = result == null ? null : output.apply(result);
+            metrics.record(nanos, text == null || text.startsWith("Error"), rows[0] - rowsBefore, utf8Length(text));
+        }
+    }
+
+
+    /**
+     * @return metrics of every operation called so far, by name
+     */
+    public List<OperationMetrics> getOperations() {
+        return new ArrayList<>(operations.values());
+    }
+
+    /**
+     * Zeroes the metrics of every operation
+     */
+    public void reset() {
+        for (OperationMetrics metrics : operations.values()) {
+            metrics.reset();
+        }
+    }
+
+
+    private OperationMetrics register(String name) {
+        OperationMetrics metrics = new OperationMetrics(name);
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("LibraryModel:type=Operation,name=" + name);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName); // left over from an earlier model in this JVM
+            }
+            server.registerMBean(metrics, objectName);
+        } catch (JMException e) {
+            System.err.println("Could not publish metrics for " + name + " through JMX: " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    private static long utf8Length(String text) {
+        if (text == null) {
+            return 0;
+        }
+        long bytes = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                bytes++;
+            } else if (c < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+}
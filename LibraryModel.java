@@ -7,46 +7,238 @@
 
 
 import javax.swing.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.sql.*;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.lang.System.exit;
 
 public class LibraryModel {
 
+    // Lookup queries, shared with warmUp so it prepares exactly what the lookups will run
+    private static final String BOOK_LOOKUP_QUERY = "SELECT ba.*, a.name, a.surname,b.* " +
+            "FROM book_author ba " +
+            "JOIN public.author a ON a.authorid = ba.authorid " +
+            "JOIN book b ON ba.isbn = b.isbn " +
+            "WHERE b.isbn = ? " +
+            "ORDER BY ba.authorseqno";
+    private static final String STRIPED_BOOK_LOOKUP_QUERY = "SELECT ba.*, a.name, a.surname, b.title, b.edition_no, b.numofcop, " +
+            "(b.numleft + COALESCE((SELECT sum(s.numleft) FROM book_stripe s WHERE s.isbn = b.isbn), 0))::integer AS numleft " +
+            "FROM book_author ba " +
+            "JOIN public.author a ON a.authorid = ba.authorid " +
+            "JOIN book b ON ba.isbn = b.isbn " +
+            "WHERE b.isbn = ? " +
+            "ORDER BY ba.authorseqno";
+    private static final String AUTHOR_QUERY = "SELECT a.authorid, a.name, a.surname, b.isbn, b.title " +
+            "FROM author a " +
+            "LEFT JOIN book_author ba ON a.authorid = ba.authorid " +
+            "LEFT JOIN book b ON ba.isbn = b.isbn " +
+            "WHERE a.authorid = ? " +
+            "ORDER BY ba.isbn";
+    private static final String CUSTOMER_QUERY = "SELECT c.customerid, c.f_name, c.l_name, c.city, cb.isbn, b.title " +
+            "FROM customer c " +
+            "JOIN cust_book cb ON c.customerid = cb.customerid " +
+            "JOIN book b ON cb.isbn = b.isbn " +
+            "WHERE c.customerid = ? " +
+            "ORDER BY b.isbn DESC; ";
+    private static final String ALL_AUTHORS_QUERY = "SELECT DISTINCT a.authorid, a.name, a.surname " +
+            "FROM author a " +
+            "ORDER BY a.authorid;";
+    private static final String ALL_CUSTOMERS_QUERY = "SELECT DISTINCT c.customerid, c.f_name, c.l_name, c.city " +
+            "FROM customer c " +
+            "ORDER BY c.customerid;";
+
+    // An isbn and customer id no library or benchmark row uses, for warming statements up
+    private static final int NO_SUCH_KEY = Integer.MIN_VALUE;
+
+    // Statements of the loans, shared with warmUp like the lookups
+    private static final String LOCK_CUSTOMER_QUERY = "SELECT * FROM Customer WHERE CustomerID = ? FOR UPDATE";
+    private static final String LOCK_BOOK_QUERY = "SELECT * FROM Book WHERE ISBN = ? AND NumLeft > 0 FOR UPDATE";
+    private static final String INSERT_LOAN_QUERY = "INSERT INTO Cust_Book (CustomerID, ISBN, DueDate) VALUES (?, ?, ?)";
+    private static final String TAKE_COPY_QUERY = "UPDATE Book SET NumLeft = NumLeft - 1 WHERE ISBN = ?";
+    private static final String DELETE_LOAN_QUERY = "DELETE FROM Cust_Book WHERE CustomerID = ? AND ISBN = ?";
+    private static final String PUT_COPY_BACK_QUERY = "UPDATE Book SET NumLeft = NumLeft + 1 WHERE ISBN = ?";
+    private static final String CUSTOMER_INFO_QUERY = "SELECT * FROM Customer WHERE CustomerID = ?";
+    private static final String BOOK_INFO_QUERY = "SELECT * FROM Book WHERE ISBN = ?";
+    private static final String CUSTOMER_NAME_QUERY = "SELECT L_Name, F_Name FROM Customer WHERE CustomerID = ?";
+    private static final String CLAIM_COPY_QUERY = "UPDATE Book SET NumLeft = NumLeft - 1 WHERE ISBN = ? AND NumLeft > 0 RETURNING Title";
+    private static final String RETURN_COPY_QUERY = "UPDATE Book SET NumLeft = NumLeft + 1 WHERE ISBN = ? RETURNING Title";
+    private static final String BOOK_AND_CUSTOMER_QUERY = "SELECT (SELECT Title FROM Book WHERE ISBN = ?) AS Title, L_Name, F_Name " +
+            "FROM (SELECT 1) p LEFT JOIN Customer ON CustomerID = ?";
+
+    // Statements on book_stripe (library_stripes.sql). Every parameter is the isbn and each
+    // returns the book's title when it changed a row.
+    private static final String CLAIM_STRIPE_QUERY = "UPDATE book_stripe SET numleft = numleft - 1 " +
+            "WHERE (isbn, stripe) = (SELECT isbn, stripe FROM book_stripe WHERE isbn = ? AND numleft > 0 " +
+            "                        ORDER BY random() LIMIT 1 FOR UPDATE SKIP LOCKED) " +
+            "RETURNING (SELECT Title FROM Book WHERE ISBN = book_stripe.isbn)";
+    private static final String WAIT_FOR_STRIPE_QUERY = "UPDATE book_stripe SET numleft = numleft - 1 " +
+            "WHERE (isbn, stripe) = (SELECT isbn, stripe FROM book_stripe WHERE isbn = ? AND numleft > 0 " +
+            "                        LIMIT 1 FOR UPDATE) " +
+            "RETURNING (SELECT Title FROM Book WHERE ISBN = book_stripe.isbn)";
+    private static final String RETURN_TO_STRIPE_QUERY = "UPDATE book_stripe SET numleft = numleft + 1 " +
+            "WHERE (isbn, stripe) = (SELECT isbn, stripe FROM book_stripe WHERE isbn = ? " +
+            "                        ORDER BY random() LIMIT 1 FOR UPDATE SKIP LOCKED) " +
+            "RETURNING (SELECT Title FROM Book WHERE ISBN = book_stripe.isbn)";
+    private static final String WAIT_TO_RETURN_TO_STRIPE_QUERY = "UPDATE book_stripe SET numleft = numleft + 1 " +
+            "WHERE (isbn, stripe) = (SELECT isbn, stripe FROM book_stripe WHERE isbn = ? LIMIT 1 FOR UPDATE) " +
+            "RETURNING (SELECT Title FROM Book WHERE ISBN = book_stripe.isbn)";
+    private static final String UNSTRIPED_PUT_COPY_BACK_QUERY = "UPDATE Book SET NumLeft = NumLeft + 1 " +
+            "WHERE ISBN = ? AND NOT EXISTS (SELECT 1 FROM book_stripe WHERE isbn = ?) RETURNING Title";
+    private static final String BORROW_STATEMENT = "WITH c AS (SELECT CustomerID, L_Name, F_Name FROM Customer WHERE CustomerID = ?), " +
+            "b AS (UPDATE Book SET NumLeft = NumLeft - 1 " +
+            "      WHERE ISBN = ? AND NumLeft > 0 AND EXISTS (SELECT 1 FROM c) " +
+            "      RETURNING ISBN, Title), " +
+            "l AS (INSERT INTO Cust_Book (CustomerID, ISBN, DueDate) " +
+            "      SELECT c.CustomerID, b.ISBN, ? FROM c, b " +
+            "      RETURNING ISBN) " +
+            "SELECT EXISTS (SELECT 1 FROM c) AS customer_found, " +
+            "(SELECT L_Name FROM c) AS L_Name, (SELECT F_Name FROM c) AS F_Name, " +
+            "(SELECT Title FROM b) AS Title, EXISTS (SELECT 1 FROM l) AS loaned";
+    private static final String RETURN_STATEMENT = "WITH l AS (DELETE FROM Cust_Book WHERE CustomerID = ? AND ISBN = ? RETURNING ISBN), " +
+            "b AS (UPDATE Book SET NumLeft = NumLeft + 1 " +
+            "      WHERE ISBN IN (SELECT ISBN FROM l) " +
+            "      RETURNING Title) " +
+            "SELECT EXISTS (SELECT 1 FROM l) AS returned, (SELECT Title FROM b) AS Title, " +
+            "c.CustomerID IS NOT NULL AS customer_found, c.L_Name, c.F_Name " +
+            "FROM (SELECT ?::integer AS CustomerID) p " +
+            "LEFT JOIN Customer c ON c.CustomerID = p.CustomerID";
+    // The same return once library_stripes.sql is installed: a striped book's copy goes back to a
+    // random stripe rather than the book row
+    private static final String STRIPED_RETURN_STATEMENT = "WITH l AS (DELETE FROM Cust_Book WHERE CustomerID = ? AND ISBN = ? RETURNING ISBN), " +
+            "b AS (UPDATE Book SET NumLeft = NumLeft + 1 " +
+            "      WHERE ISBN IN (SELECT ISBN FROM l) AND NOT EXISTS (SELECT 1 FROM book_stripe WHERE isbn = Book.ISBN)), " +
+            "s AS (UPDATE book_stripe SET numleft = numleft + 1 " +
+            "      WHERE (isbn, stripe) = (SELECT isbn, stripe FROM book_stripe WHERE isbn IN (SELECT ISBN FROM l) " +
+            "                              ORDER BY random() LIMIT 1 FOR UPDATE)) " +
+            "SELECT EXISTS (SELECT 1 FROM l) AS returned, " +
+            "(SELECT Title FROM Book WHERE ISBN IN (SELECT ISBN FROM l)) AS Title, " +
+            "c.CustomerID IS NOT NULL AS customer_found, c.L_Name, c.F_Name " +
+            "FROM (SELECT ?::integer AS CustomerID) p " +
+            "LEFT JOIN Customer c ON c.CustomerID = p.CustomerID";
+
     // For use in creating dialogs and making them modal
     private JFrame dialogParent;
-    private Connection con = null;
+    // False when running without a UI, e.g. under LibraryBenchmark: no dialogs are shown
+    private final boolean interactive;
+    // Every operation borrows a connection from here and gives it back when done
+    private ConnectionPool pool = null;
+
+    // Formatted results of bookLookup, showAuthor and showCustomer, dropped whenever a loan or delete
+    // touches them. Bounded by library.cache.maxChars characters each.
+    private final long cacheMaxChars = Long.getLong("library.cache.maxChars", 1000000);
+    private final LookupCache bookCache = new LookupCache("Book", cacheMaxChars);
+    private final LookupCache authorCache = new LookupCache("Author", cacheMaxChars);
+    private final LookupCache customerCache = new LookupCache("Customer", cacheMaxChars);
+
+    // Words of every title and author name, for searchBooks. Kept up to date from the same
+    // changes that invalidate the caches.
+    private final SearchIndex searchIndex = new SearchIndex();
+
+    // Latency histograms and counts for every public operation, also published through JMX
+    private final LibraryMetrics metrics = new LibraryMetrics();
+
+    // How borrowBook and returnBook do their work, switchable at runtime
+    private volatile LoanMode loanMode = LoanMode.defaultMode();
+
+    // True when library_stripes.sql is installed: copies left are book.numleft plus the stripes
+    private volatile boolean striped = false;
+
+    // Shares transactions between concurrent loans in LoanMode.GROUP_COMMIT, started on first use
+    private GroupCommitter groupCommitter = null;
+
+    // Drops cache entries changed by other clients, when library_notify.sql is installed
+    private ChangeListener changeListener = null;
+
+    // Local copy of the catalogue, so catalogue pages are formatted without joining on the server.
+    // Served from the start, its pages flagged possibly stale until snapshotCurrent is set by a
+    // check against the database. A known change to the catalogue sets snapshotStale, which stops
+    // its use, bumps snapshotChanges and schedules a rewrite on snapshotRefresher.
+    private Path snapshotFile = null;
+    private volatile CatalogueSnapshot snapshot = null;
+    private volatile boolean snapshotCurrent = false;
+    private volatile boolean snapshotStale = false;
+    private final AtomicLong snapshotChanges = new AtomicLong();
+    private final AtomicBoolean snapshotRefreshPending = new AtomicBoolean();
+    private ScheduledExecutorService snapshotRefresher = null;
+
+    // In-memory copy of the library tables that answers lookups without a round trip, kept
+    // current from the change log of library_changelog.sql. Only used when library.replica is true.
+    private CatalogueReplica replica = null;
+    private ReplicaSync replicaSync = null;
 
 
     /**
-     * Constructor, initialise connection to <id>_jdbc
+     * Constructor, initialise the connection pool for <id>_jdbc
+     *
+     * The database url and pool settings can be overridden with system properties:
+     * library.url, library.pool.minSize, library.pool.maxSize, library.pool.acquireTimeoutMs,
+     * library.pool.idleTimeoutMs, library.pool.validateAfterMs and library.pool.statementCacheSize.
+     * Setting library.notify to false turns off listening for other clients' changes, and
+     * library.snapshot to false turns off the local catalogue snapshot kept in library.snapshot.file,
+     * which is served straight away and checked against the database in the background every
+     * library.snapshot.checkMs.
+     * Setting library.replica to true answers lookups from an in-memory replica synced every
+     * library.replica.syncMs.
+     *
+     * Dialogs are shown on the Swing event thread, so the model can be built in the background.
+     *
      * @param parent
      * @param userid
      * @param password
      */
     public LibraryModel(JFrame parent, String userid, String password) {
 	    dialogParent = parent;
-        String url = "jdbc:postgresql://db.ecs.vuw.ac.nz/" + userid + "_jdbc";
+        interactive = true;
+        String url = databaseUrl(userid);
 
         // Attempt connection to database with given userid and password, if fails it displays the error and throws runtime exception
         try{
-            Class.forName("org.postgresql.Driver");
-            this.con = DriverManager.getConnection(url,userid,password);
-            JOptionPane.showMessageDialog(dialogParent, "Database connection established.");
+            connect(url, userid, password);
+            onEventThread(() -> JOptionPane.showMessageDialog(dialogParent, "Database connection established."));
         }
         catch (SQLException e) {
             String errorMessage = e.getMessage();
             if (errorMessage.contains("password authentication failed")) {
-                JOptionPane.showMessageDialog(dialogParent, "Login failed: Password authentication failed", "Login Error", JOptionPane.ERROR_MESSAGE);
+                onEventThread(() -> JOptionPane.showMessageDialog(dialogParent, "Login failed: Password authentication failed", "Login Error", JOptionPane.ERROR_MESSAGE));
             } else if (errorMessage.contains("GSS Authentication failed")) {
-                JOptionPane.showMessageDialog(dialogParent, "Login failed: GSS Authentication failed", "Login Error", JOptionPane.ERROR_MESSAGE);
+                onEventThread(() -> JOptionPane.showMessageDialog(dialogParent, "Login failed: GSS Authentication failed", "Login Error", JOptionPane.ERROR_MESSAGE));
             } else {
-                JOptionPane.showMessageDialog(dialogParent, "Failed to connect to the database: " + e.getMessage(), "Database Connection Error", JOptionPane.ERROR_MESSAGE);
+                onEventThread(() -> JOptionPane.showMessageDialog(dialogParent, "Failed to connect to the database: " + e.getMessage(), "Database Connection Error", JOptionPane.ERROR_MESSAGE));
             }
             // Exit the application after any login failure
             exitProgram();
         } catch (ClassNotFoundException e) {
-            JOptionPane.showMessageDialog(dialogParent, "Failed to load the PostgreSQL JDBC driver: " + e.getMessage(), "Driver Error", JOptionPane.ERROR_MESSAGE);
+            onEventThread(() -> JOptionPane.showMessageDialog(dialogParent, "Failed to load the PostgreSQL JDBC driver: " + e.getMessage(), "Driver Error", JOptionPane.ERROR_MESSAGE));
             // Exit the application after any login failure
             exitProgram();
         };
@@ -54,6 +246,163 @@ public class LibraryModel {
     }
 
 
+    /**
+     * Constructor for running without a UI, e.g. benchmarks. Connection failures are thrown rather
+     * than shown, and borrowBook/returnBook do not stop for the lock confirmation dialog.
+     *
+     * @param url - JDBC url of the database
+     * @param userid
+     * @param password
+     */
+    LibraryModel(String url, String userid, String password) throws SQLException, ClassNotFoundException {
+        dialogParent = null;
+        interactive = false;
+        connect(url, userid, password);
+    }
+
+
+    // library.url, or the user's database on the ECS server
+    private static String databaseUrl(String userid) {
+        return System.getProperty("library.url", "jdbc:postgresql://db.ecs.vuw.ac.nz/" + userid + "_jdbc");
+    }
+
+    /**
+     * Loads the JDBC driver and looks up the database host, so connecting afterwards does not
+     * wait for either. Meant to run in the background while the login dialog is up.
+     */
+    public static void preload() {
+        try {
+            Class.forName("org.postgresql.Driver");
+            String host = URI.create(databaseUrl("").substring("jdbc:".length())).getHost();
+            if (host != null) {
+                InetAddress.getAllByName(host);
+            }
+        } catch (ClassNotFoundException | IllegalArgumentException | UnknownHostException e) {
+            // Connecting reports the same problem properly
+        }
+    }
+
+
+    // Opens the catalogue snapshot, the connection pool and, unless turned off, the change listener
+    private void connect(String url, String userid, String password) throws SQLException, ClassNotFoundException {
+        if (Boolean.parseBoolean(System.getProperty("library.snapshot", "true"))) {
+            openSnapshot();
+        }
+        Class.forName("org.postgresql.Driver");
+        this.pool = new ConnectionPool(url, userid, password,
+                Integer.getInteger("library.pool.minSize", 2),
+                Integer.getInteger("library.pool.maxSize", 8),
+                Long.getLong("library.pool.acquireTimeoutMs", 10000),
+                Long.getLong("library.pool.idleTimeoutMs", 300000),
+                Long.getLong("library.pool.validateAfterMs", 5000),
+                Integer.getInteger("library.pool.statementCacheSize", 32),
+                SlowQueryLog.fromSystemProperties());
+        striped = detectStripes();
+        if (Boolean.parseBoolean(System.getProperty("library.notify", "true"))) {
+            changeListener = new ChangeListener(url, userid, password, new CacheInvalidator(),
+                    Integer.getInteger("library.notify.pollMs", 1000));
+            changeListener.start();
+        }
+        if (snapshotRefresher != null) {
+            // Check the snapshot against the database now and every so often, rewriting it if
+            // anything has changed, so changes not seen through library.notify are picked up too
+            snapshotRefresher.scheduleWithFixedDelay(() -> scheduleSnapshotRefresh(0),
+                    0, Long.getLong("library.snapshot.checkMs", 60000), TimeUnit.MILLISECONDS);
+        }
+        if (Boolean.parseBoolean(System.getProperty("library.replica", "false"))) {
+            replica = new CatalogueReplica();
+            replicaSync = new ReplicaSync(pool, replica, Long.getLong("library.replica.syncMs", 2000));
+            replicaSync.start();
+        }
+    }
+
+    // Whether book_stripe exists. The replica only knows book.numleft, so copies left are read
+    // from the database when it does.
+    private boolean detectStripes() throws SQLException {
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement("SELECT to_regclass('book_stripe') IS NOT NULL");
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() && rs.getBoolean(1);
+        }
+    }
+
+    // Copies left of book b as a select list item named numleft
+    private String copiesLeftColumn() {
+        return striped
+                ? "(b.numleft + COALESCE((SELECT sum(s.numleft) FROM book_stripe s WHERE s.isbn = b.isbn), 0))::integer AS numleft"
+                : "b.numleft";
+    }
+
+    // The replica, if it is in use and recent enough to answer from, else null
+    private CatalogueReplica freshReplica() {
+        return replicaSync != null && replicaSync.prepareRead() ? replica : null;
+    }
+
+    // Something was changed through this model: the replica syncs before it next answers
+    private void replicaChanged() {
+        if (replicaSync != null) {
+            replicaSync.markDirty();
+        }
+    }
+
+    // Maps the snapshot left by the last session, if there is one. Pages come from it straight
+    // away, flagged possibly stale until the first refresh has compared it with the database.
+    private void openSnapshot() {
+        snapshotFile = Paths.get(System.getProperty("library.snapshot.file",
+                System.getProperty("user.home") + File.separator + ".library-catalogue.snapshot"));
+        try {
+            snapshot = CatalogueSnapshot.open(snapshotFile);
+        } catch (NoSuchFileException e) {
+            // First run, written by the first refresh
+        } catch (IOException e) {
+            System.err.println("Ignoring catalogue snapshot " + snapshotFile + ": " + e.getMessage());
+        }
+        snapshotRefresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "library-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    // Something in the catalogue changed: stop using the snapshot until it has been rewritten.
+    // Rewrites are delayed by library.snapshot.refreshDelayMs so a burst of loans costs one.
+    private void snapshotChanged() {
+        if (snapshotRefresher == null) {
+            return;
+        }
+        snapshotChanges.incrementAndGet();
+        snapshotCurrent = false;
+        snapshotStale = true;
+        scheduleSnapshotRefresh(Long.getLong("library.snapshot.refreshDelayMs", 5000));
+    }
+
+    private void scheduleSnapshotRefresh(long delayMillis) {
+        if (snapshotRefreshPending.compareAndSet(false, true)) {
+            snapshotRefresher.schedule(this::refreshSnapshot, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void refreshSnapshot() {
+        snapshotRefreshPending.set(false);
+        long changes = snapshotChanges.get();
+        try (PooledConnection con = pool.acquire()) {
+            CatalogueSnapshot current = snapshot;
+            if (current == null || !current.getMarker().equals(CatalogueSnapshot.readMarker(con.connection()))) {
+                current = CatalogueSnapshot.write(con.connection(), snapshotFile);
+                snapshot = current;
+            }
+            // A change made while we were reading is picked up by the refresh it scheduled
+            boolean caughtUp = snapshotChanges.get() == changes;
+            snapshotCurrent = caughtUp;
+            snapshotStale = !caughtUp;
+        } catch (SQLException | IOException e) {
+            // Unchecked, it could be missing anything changed since; still served, flagged
+            snapshotCurrent = false;
+            System.err.println("Could not refresh catalogue snapshot: " + e.getMessage());
+        }
+    }
+
+
     /**
      * Finds a book based on isbn and returns the related book authors ordered by authseqno
      *
@@ -61,22 +410,32 @@ public class LibraryModel {
      * @return result - String of the result of SQL Query
      */
     public String bookLookup(int isbn) {
-        // Construct SQL Quesry
-        String query = "SELECT ba.*, a.name, a.surname,b.* " +
-                "FROM book_author ba " +
-                "JOIN public.author a ON a.authorid = ba.authorid " +
-                "JOIN book b ON ba.isbn = b.isbn " +
-                "WHERE b.isbn = ? " +
-                "ORDER BY ba.authorseqno";
+        return metrics.time("bookLookup", () -> bookLookupImpl(isbn));
+    }
+
+    private String bookLookupImpl(int isbn) {
+        CatalogueReplica current = striped ? null : freshReplica();
+        if (current != null) {
+            return current.bookLookup(isbn);
+        }
+
+        String cached = bookCache.get(isbn);
+        if (cached != null) {
+            return cached;
+        }
+        long cacheVersion = bookCache.version();
 
         //use Stringbuilder for result
         StringBuilder result = new StringBuilder();
+        List<Integer> authorIDs = new ArrayList<>();
 
-        try (PreparedStatement stmt = con.prepareStatement(query)) {
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(striped ? STRIPED_BOOK_LOOKUP_QUERY : BOOK_LOOKUP_QUERY)) {
             stmt.setInt(1, isbn);  // Sets int value for isbn, type safety
             try (ResultSet rs = stmt.executeQuery()) {  //Execture query
                 boolean bookFound = false;
                 while (rs.next()) { // Iterate over each row in the result set
+                    LibraryMetrics.rowRead();
                     if (!bookFound) {
                         result.append("ISBN: ")
                                 .append(isbn)
@@ -92,26 +451,216 @@ public class LibraryModel {
                             .append(" (AuthorSeqNo: ")
                             .append(rs.getInt("authorseqno"))
                             .append(")\n");
+                    authorIDs.add(rs.getInt("authorid"));
                 }
                 if (!bookFound) {
                     result.append("No book found with ISBN: ").append(isbn);
+                    return result.toString();
                 }
             }
         } catch (SQLException e) {
             return "Error executing query: " + e.getMessage();
         }
+        bookCache.put(isbn, result.toString(), toIntArray(authorIDs), cacheVersion);
+        return result.toString();
+    }
+
+
+    /**
+     * Finds books whose title or author names contain every word of the query, as whole words,
+     * prefixes or substrings, best matches first. Answered from an in-memory index, which is
+     * loaded on first use and afterwards only re-reads books that have changed.
+     *
+     * @param query - e.g. "tolk hob"
+     * @return result - up to library.search.limit matching books
+     */
+    public String searchBooks(String query) {
+        return metrics.time("searchBooks", () -> searchBooksImpl(query));
+    }
+
+    private String searchBooksImpl(String query) {
+        if (searchIndex.needsRefresh()) {
+            try (PooledConnection con = pool.acquire()) {
+                searchIndex.refresh(con.connection());
+            } catch (SQLException e) {
+                return "Error loading search index: " + e.getMessage();
+            }
+        }
+
+        List<SearchIndex.Match> matches = searchIndex.search(query, Integer.getInteger("library.search.limit", 50));
+        StringBuilder result = new StringBuilder("Search Books: ").append(query.trim()).append("\n");
+        for (SearchIndex.Match match : matches) {
+            LibraryMetrics.rowRead();
+            result.append("    ").append(match.isbn).append(": ").append(match.title);
+            if (!match.authors.isEmpty()) {
+                result.append(" - ").append(match.authors);
+            }
+            result.append("\n");
+        }
+        if (matches.isEmpty()) {
+            result.append("    (No matching books)");
+        }
         return result.toString();
     }
 
 
+    /**
+     * Loads every ISBN and title, or customer ID and name, for type-ahead completion in the UI
+     *
+     * @param kind
+     * @return index - searched in memory from then on
+     */
+    public IdIndex loadIdIndex(IdIndex.Kind kind) throws SQLException {
+        try (PooledConnection con = pool.acquire()) {
+            return IdIndex.load(con.connection(), kind);
+        }
+    }
+
+
+    /**
+     * Gets the first use of every lookup, loan and catalogue page out of the way: prepares their
+     * statements through the statement cache of each pooled connection and fetches the author and
+     * customer lists, the search index and the first catalogue page, all in parallel. Results are
+     * thrown away; only the parse, plan and class loading costs are saved.
+     *
+     * The loan statements of every mode are run for an isbn and customer that do not exist, so
+     * they match no row: nothing is locked, written or triggered. The loan insert is only put in
+     * the cache.
+     * Each statement is run library.warmup.rounds times (default 5), the point at which the
+     * driver switches to a server-side prepared statement. The time taken is in the metrics
+     * under "warmUp".
+     *
+     * @return how long it took, or what failed
+     */
+    public String warmUp() {
+        return metrics.time("warmUp", this::warmUpImpl);
+    }
+
+    private String warmUpImpl() {
+        long start = System.nanoTime();
+        int connections = Integer.getInteger("library.pool.minSize", 2);
+        int rounds = Integer.getInteger("library.warmup.rounds", 5);
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            tasks.add(() -> {
+                prepareStatements(rounds);
+                return null;
+            });
+        }
+        tasks.add(() -> {
+            showAllAuthorsImpl();
+            return null;
+        });
+        tasks.add(() -> {
+            showAllCustomersImpl();
+            return null;
+        });
+        tasks.add(() -> {
+            nextCataloguePageImpl(null, Integer.getInteger("library.catalogue.pageSize", 200));
+            return null;
+        });
+        tasks.add(() -> {
+            if (searchIndex.needsRefresh()) {
+                try (PooledConnection con = pool.acquire()) {
+                    searchIndex.refresh(con.connection());
+                }
+            }
+            return null;
+        });
+
+        StringBuilder failures = new StringBuilder();
+        ExecutorService warmers = Executors.newFixedThreadPool(tasks.size(), r -> {
+            Thread t = new Thread(r, "library-warmup");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (Future<Void> done : warmers.invokeAll(tasks)) {
+                try {
+                    done.get();
+                } catch (ExecutionException e) {
+                    failures.append("\n    ").append(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.append("\n    interrupted");
+        } finally {
+            warmers.shutdownNow();
+        }
+        if (failures.length() > 0) {
+            return "Error warming up:" + failures;
+        }
+        return "Warmed up in " + (System.nanoTime() - start) / 1000000 + " ms";
+    }
+
+    // Runs each lookup and loan statement for keys that cannot exist on one pooled connection, so
+    // they are prepared without locking or changing a row. Held for all of the rounds, so
+    // concurrent callers warm different connections.
+    private void prepareStatements(int rounds) throws SQLException {
+        java.sql.Date dueDate = java.sql.Date.valueOf(LocalDate.now());
+        List<String> byIsbn = new ArrayList<>(List.of(striped ? STRIPED_BOOK_LOOKUP_QUERY : BOOK_LOOKUP_QUERY,
+                LOCK_BOOK_QUERY, TAKE_COPY_QUERY, PUT_COPY_BACK_QUERY, BOOK_INFO_QUERY, CLAIM_COPY_QUERY, RETURN_COPY_QUERY));
+        if (striped) {
+            byIsbn.addAll(List.of(CLAIM_STRIPE_QUERY, WAIT_FOR_STRIPE_QUERY, RETURN_TO_STRIPE_QUERY,
+                    WAIT_TO_RETURN_TO_STRIPE_QUERY, UNSTRIPED_PUT_COPY_BACK_QUERY));
+        }
+        try (PooledConnection con = pool.acquire()) {
+            for (int round = 0; round < rounds; round++) {
+                for (String query : byIsbn) {
+                    runToWarmUp(con, query, NO_SUCH_KEY, NO_SUCH_KEY);
+                }
+                for (String query : new String[]{AUTHOR_QUERY, CUSTOMER_QUERY, LOCK_CUSTOMER_QUERY, CUSTOMER_INFO_QUERY, CUSTOMER_NAME_QUERY}) {
+                    runToWarmUp(con, query, NO_SUCH_KEY);
+                }
+                runToWarmUp(con, DELETE_LOAN_QUERY, NO_SUCH_KEY, NO_SUCH_KEY);
+                runToWarmUp(con, BOOK_AND_CUSTOMER_QUERY, NO_SUCH_KEY, NO_SUCH_KEY);
+                // Without the customer these find nothing to lend or return
+                runToWarmUp(con, BORROW_STATEMENT, NO_SUCH_KEY, NO_SUCH_KEY, dueDate);
+                runToWarmUp(con, striped ? STRIPED_RETURN_STATEMENT : RETURN_STATEMENT, NO_SUCH_KEY, NO_SUCH_KEY, NO_SUCH_KEY);
+            }
+            // An insert cannot be run harmlessly, so the loan insert is only put in the cache
+            con.prepareStatement(INSERT_LOAN_QUERY).close();
+        }
+    }
+
+    // Runs a statement with the parameters set as the real callers set them, reading any rows.
+    // Parameters beyond those the statement has are ignored.
+    private static void runToWarmUp(PooledConnection con, String query, Object... parameters) throws SQLException {
+        try (PreparedStatement stmt = con.prepareStatement(query)) {
+            int count = (int) query.chars().filter(c -> c == '?').count();
+            for (int i = 0; i < count; i++) {
+                if (parameters[i] instanceof Integer) {
+                    stmt.setInt(i + 1, (Integer) parameters[i]);
+                } else {
+                    stmt.setDate(i + 1, (java.sql.Date) parameters[i]);
+                }
+            }
+            if (stmt.execute()) {
+                try (ResultSet rs = stmt.getResultSet()) {
+                    while (rs.next()) {
+                        LibraryMetrics.rowRead();
+                    }
+                }
+            }
+        }
+    }
+
+
     /**
      * Displays the catlogue (all the books)
      *
      * @return result - Fromatted string with all books/authors for that book
      */
     public String showCatalogue() {
+        return metrics.time("showCatalogue", this::showCatalogueImpl);
+    }
+
+    private String showCatalogueImpl() {
 
-        String query = "SELECT DISTINCT b.*, a.name, a.surname, ba.authorseqno " +
+        String query = "SELECT DISTINCT b.isbn, b.title, b.edition_no, b.numofcop, " + copiesLeftColumn() + ", " +
+                "a.name, a.surname, ba.authorseqno " +
                 "FROM book b " +
                 "LEFT JOIN book_author ba ON b.isbn = ba.isbn " +
                 "LEFT JOIN author a ON a.authorid = ba.authorid " +
@@ -119,13 +668,15 @@ public class LibraryModel {
 
         StringBuilder result = new StringBuilder();
 
-        try (PreparedStatement stmt = con.prepareStatement(query);
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(query);
              ResultSet rs = stmt.executeQuery()) {
 
             int currentIsbn = -1;
             boolean firstRow = true;
 
             while (rs.next()) {
+                LibraryMetrics.rowRead();
                 int isbn = rs.getInt("isbn");
                 if (isbn != currentIsbn) {
                     if (!firstRow) {
@@ -155,66 +706,224 @@ public class LibraryModel {
 
     }
 
+
+    /**
+     * Displays one page of the catalogue, continuing after the last row of the previous page.
+     * Pages are keyed on (isbn, authorseqno) rather than OFFSET, so later pages cost the same
+     * as the first, and rows are streamed from a server side cursor of fetchSize rows.
+     *
+     * @param previous - the page before this one, or null for the first page
+     * @param pageSize - maximum number of (book, author) rows on the page
+     * @return page - formatted like showCatalogue, with the key of its last row
+     */
+    public CataloguePage nextCataloguePage(CataloguePage previous, int pageSize) {
+        return metrics.time("nextCataloguePage", () -> nextCataloguePageImpl(previous, pageSize), CataloguePage::getText);
+    }
+
+    // Copies left of the first count books from isbn on, enough for any page starting there since
+    // every book takes at least one row; null if they cannot be read, so the page is read in full
+    private Map<Integer, Integer> copiesLeftFrom(int isbn, int count) {
+        String query = "SELECT b.isbn, " + copiesLeftColumn() + " FROM book b WHERE b.isbn >= ? ORDER BY b.isbn LIMIT ?";
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(query)) {
+            stmt.setInt(1, isbn);
+            stmt.setInt(2, count);
+            Map<Integer, Integer> copiesLeft = new HashMap<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    LibraryMetrics.rowRead();
+                    copiesLeft.put(rs.getInt(1), rs.getInt(2));
+                }
+            }
+            return copiesLeft;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    private CataloguePage nextCataloguePageImpl(CataloguePage previous, int pageSize) {
+        CatalogueSnapshot current = snapshot;
+        if (current != null && !snapshotStale) {
+            // Titles and authors from the snapshot, copies left always from the database
+            boolean checked = snapshotCurrent;
+            Map<Integer, Integer> copiesLeft = copiesLeftFrom(previous == null ? Integer.MIN_VALUE : previous.getLastIsbn(), pageSize + 1);
+            CataloguePage page = copiesLeft == null ? null : current.page(previous, pageSize, copiesLeft);
+            if (page != null) {
+                return checked ? page : page.possiblyStale();
+            }
+        }
+
+        // Books without authors sort as authorseqno -1, so every row has a unique key
+        String query = "SELECT b.isbn, b.title, b.edition_no, b.numofcop, " + copiesLeftColumn() + ", a.name, a.surname, " +
+                "COALESCE(ba.authorseqno, -1) AS seqno " +
+                "FROM book b " +
+                "LEFT JOIN book_author ba ON b.isbn = ba.isbn " +
+                "LEFT JOIN author a ON a.authorid = ba.authorid " +
+                "WHERE b.isbn >= ? AND (b.isbn, COALESCE(ba.authorseqno, -1)) > (?, ?) " +
+                "ORDER BY b.isbn, seqno " +
+                "LIMIT ?";
+
+        int afterIsbn = previous == null ? Integer.MIN_VALUE : previous.getLastIsbn();
+        int afterSeqNo = previous == null ? Integer.MIN_VALUE : previous.getLastAuthorSeqNo();
+
+        StringBuilder result = new StringBuilder();
+        int lastIsbn = afterIsbn;
+        int lastSeqNo = afterSeqNo;
+        int rows = 0;
+        boolean hasMore = false;
+
+        PooledConnection con = null;
+        try {
+            con = pool.acquire();
+            // The driver only uses a cursor, fetching a batch at a time, inside a transaction
+            con.setAutoCommit(false);
+
+            try (PreparedStatement stmt = con.prepareStatement(query)) {
+                stmt.setFetchSize(Integer.getInteger("library.catalogue.fetchSize", 100));
+                stmt.setInt(1, afterIsbn);
+                stmt.setInt(2, afterIsbn);
+                stmt.setInt(3, afterSeqNo);
+                stmt.setInt(4, pageSize + 1); // one extra row tells us if there is another page
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        LibraryMetrics.rowRead();
+                        if (rows == pageSize) {
+                            hasMore = true;
+                            break;
+                        }
+                        int isbn = rs.getInt("isbn");
+                        if (rows == 0 && previous != null && isbn == previous.getLastIsbn()) {
+                            // Page starts part way through a book's authors
+                            result.append(isbn).append(": ").append(rs.getString("title")).append(" (continued)\n");
+                            result.append("\tAuthor: ").append(rs.getString("name")).append(" ").append(rs.getString("surname")).append("\n");
+                        } else if (rows == 0 || isbn != lastIsbn) {
+                            if (rows != 0) {
+                                result.append("\n");
+                            }
+                            result.append(isbn).append(": ").append(rs.getString("title")).append("\n");
+                            result.append("\tEdition: ").append(rs.getInt("edition_no"))
+                                    .append(" - Number of copies: ").append(rs.getInt("numofcop"))
+                                    .append(" - Copies left: ").append(rs.getInt("numleft")).append("\n");
+
+                            if (rs.getString("name") == null) {
+                                result.append("\t(no authors)\n");
+                            } else {
+                                result.append("\tAuthor: ").append(rs.getString("name")).append(" ").append(rs.getString("surname")).append("\n");
+                            }
+                        } else {
+                            result.append("\tAuthor: ").append(rs.getString("name")).append(" ").append(rs.getString("surname")).append("\n");
+                        }
+                        lastIsbn = isbn;
+                        lastSeqNo = rs.getInt("seqno");
+                        rows++;
+                    }
+                }
+            }
+            con.commit();
+
+            if (rows == 0 && previous == null) {
+                result.append("(No books in the catalogue)");
+            } else if (hasMore) {
+                result.append("(More books to show)");
+            } else {
+                result.append("(End of catalogue)");
+            }
+        } catch (SQLException e) {
+            return new CataloguePage("Error executing query: " + e.getMessage(), afterIsbn, afterSeqNo, false, 0);
+        } finally {
+            if (con != null) {
+                con.close(); // rolls back and restores auto-commit if we did not get to commit
+            }
+        }
+
+        return new CataloguePage(result.toString(), lastIsbn, lastSeqNo, hasMore, rows);
+    }
+
     /**
      * Shows the loaned books
      *
      * @return result, loaned books
      */
     public String showLoanedBooks() {
-        String result = "Show Loaned Books:\n";
+        return metrics.time("showLoanedBooks", this::showLoanedBooksImpl);
+    }
+
+    private String showLoanedBooksImpl() {
+        StringBuilder result = new StringBuilder();
+        try {
+            writeLoanedBooksImpl(result);
+        } catch (SQLException | IOException e) {
+            return "Error loading loaned books: " + e.getMessage();
+        }
+        return result.toString();
+    }
+
+    /**
+     * Writes the loaned books report a row at a time as it is read from a server side cursor,
+     * so memory use does not grow with the number of loans
+     *
+     * @param out - where the report goes, e.g. a Writer on an export file
+     */
+    public void writeLoanedBooks(Appendable out) throws SQLException, IOException {
+        timeWrite("writeLoanedBooks", () -> writeLoanedBooksImpl(out));
+    }
 
-        String query = "SELECT cb.isbn, cb.customerid, b.title, b.edition_no, b.numofcop, b.numleft, " +
-                "string_agg(a.name || ' ' || a.surname, ', ') AS authors " +
+    private void writeLoanedBooksImpl(Appendable out) throws SQLException, IOException {
+        out.append("Show Loaned Books:\n");
+
+        // One row per loan, with the authors aggregated per book in a subquery, so the whole
+        // report comes back in a single query and is grouped by isbn here
+        String query = "SELECT b.isbn, b.title, b.edition_no, b.numofcop, " + copiesLeftColumn() + ", ba.authors, " +
+                "c.customerid, c.l_name, c.f_name, c.city " +
                 "FROM cust_book cb " +
                 "JOIN book b ON cb.isbn = b.isbn " +
-                "JOIN book_author ba ON cb.isbn = ba.isbn " +
-                "JOIN author a ON ba.authorid = a.authorid " +
-                "GROUP BY cb.isbn, cb.customerid, b.title, b.edition_no, b.numofcop, b.numleft " +
-                "ORDER BY cb.isbn";
+                "JOIN customer c ON cb.customerid = c.customerid " +
+                "JOIN (SELECT ba.isbn, string_agg(a.name || ' ' || a.surname, ', ' ORDER BY ba.authorseqno) AS authors " +
+                "      FROM book_author ba " +
+                "      JOIN author a ON ba.authorid = a.authorid " +
+                "      GROUP BY ba.isbn) ba ON cb.isbn = ba.isbn " +
+                "ORDER BY b.isbn, c.customerid";
+
+        try (PooledConnection con = pool.acquire()) {
+            // The driver only uses a cursor inside a transaction
+            con.setAutoCommit(false);
 
-        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery(query)) {
-            boolean anyBooks = false;
+            try (PreparedStatement stmt = con.prepareStatement(query)) {
+                stmt.setFetchSize(Integer.getInteger("library.catalogue.fetchSize", 100));
 
-            while (rs.next()) {
-                anyBooks = true;
-                int isbn = rs.getInt("isbn");
-                int customerID = rs.getInt("customerid");
-                String title = rs.getString("title");
-                int editionNo = rs.getInt("edition_no");
-                int numOfCop = rs.getInt("numofcop");
-                int numLeft = rs.getInt("numleft");
-                String authors = rs.getString("authors");
+                try (ResultSet rs = stmt.executeQuery()) {
+                    boolean anyBooks = false;
+                    int currentIsbn = -1;
+
+                    while (rs.next()) {
+                        LibraryMetrics.rowRead();
+                        int isbn = rs.getInt("isbn");
 
-                result += isbn + ": " + title + "\n";
-                result += "    Edition: " + editionNo + " - Number of copies: " + numOfCop + " - Copies left: " + numLeft + "\n";
-                result += "    Authors: " + authors + "\n";
-                result += "    Borrowers:\n";
+                        // First loan of a book, print the book details before its borrowers
+                        if (!anyBooks || isbn != currentIsbn) {
+                            out.append(String.valueOf(isbn)).append(": ").append(rs.getString("title")).append("\n");
+                            out.append("    Edition: ").append(String.valueOf(rs.getInt("edition_no")))
+                                    .append(" - Number of copies: ").append(String.valueOf(rs.getInt("numofcop")))
+                                    .append(" - Copies left: ").append(String.valueOf(rs.getInt("numleft"))).append("\n");
+                            out.append("    Authors: ").append(rs.getString("authors")).append("\n");
+                            out.append("    Borrowers:\n");
+                            currentIsbn = isbn;
+                            anyBooks = true;
+                        }
 
-                String borrowerQuery = "SELECT cb.customerid, c.l_name, c.f_name, c.city " +
-                        "FROM cust_book cb " +
-                        "JOIN customer c ON cb.customerid = c.customerid " +
-                        "WHERE cb.isbn = " + isbn + " " +
-                        "ORDER BY cb.customerid";
+                        out.append("        ").append(String.valueOf(rs.getInt("customerid")))
+                                .append(": ").append(rs.getString("l_name"))
+                                .append(", ").append(rs.getString("f_name"))
+                                .append(" - ").append(rs.getString("city")).append("\n");
+                    }
 
-                try (Statement borrowerStmt = con.createStatement(); ResultSet rsBorrower = borrowerStmt.executeQuery(borrowerQuery)) {
-                    while (rsBorrower.next()) {
-                        int borrowerID = rsBorrower.getInt("customerid");
-                        String lName = rsBorrower.getString("l_name");
-                        String fName = rsBorrower.getString("f_name");
-                        String city = rsBorrower.getString("city");
-                        result += "        " + borrowerID + ": " + lName + ", " + fName + " - " + city + "\n";
+                    if (!anyBooks) {
+                        out.append("(No Loaned Books)");
                     }
                 }
             }
-
-            if (!anyBooks) {
-                result += "(No Loaned Books)";
-            }
-        } catch (SQLException e) {
-            result = "Error loading loaned books: " + e.getMessage();
         }
-
-        return result;
     }
 
 
@@ -225,46 +934,85 @@ public class LibraryModel {
      * @return - result
      */
     public String showAuthor(int authorID) {
-        String result = "";
+        return metrics.time("showAuthor", () -> showAuthorImpl(authorID));
+    }
 
-        String query = "SELECT a.authorid, a.name, a.surname, b.isbn, b.title " +
-                "FROM author a " +
-                "LEFT JOIN book_author ba ON a.authorid = ba.authorid " +
-                "LEFT JOIN book b ON ba.isbn = b.isbn " +
-                "WHERE a.authorid = ? " +
-                "ORDER BY ba.isbn";
+    private String showAuthorImpl(int authorID) {
+        CatalogueReplica current = freshReplica();
+        if (current != null) {
+            return current.showAuthor(authorID);
+        }
+        String result = authorCache.get(authorID);
+        if (result != null) {
+            return result;
+        }
+        long cacheVersion = authorCache.version();
+        List<Integer> isbns = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
 
-        try (PreparedStatement stmt = con.prepareStatement(query)) {
+        try {
+            if (renderAuthor(authorID, out, isbns)) {
+                authorCache.put(authorID, out.toString(), toIntArray(isbns), cacheVersion);
+            }
+        } catch (SQLException | IOException e) {
+            return "Error showing author: " + e.getMessage();
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Writes the same report as showAuthor, a row at a time
+     *
+     * @param authorID
+     * @param out - where the report goes
+     */
+    public void writeAuthor(int authorID, Appendable out) throws SQLException, IOException {
+        timeWrite("writeAuthor", () -> writeAuthorImpl(authorID, out));
+    }
+
+    private void writeAuthorImpl(int authorID, Appendable out) throws SQLException, IOException {
+        String cached = authorCache.get(authorID);
+        if (cached != null) {
+            out.append(cached);
+        } else {
+            renderAuthor(authorID, out, new ArrayList<>());
+        }
+    }
+
+    // Writes the author report to out and the isbns of their books to isbns, false if there is no such author
+    private boolean renderAuthor(int authorID, Appendable out, List<Integer> isbns) throws SQLException, IOException {
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(AUTHOR_QUERY)) {
             stmt.setInt(1, authorID);
 
             try (ResultSet rs = stmt.executeQuery()) {
                 if (!rs.next()) {
-                    result = "Show Author:\n    No such author ID: " + authorID;
-                } else {
-                    result = "Show Author:\n";
-                    boolean firstRow = true;
-                    String authorName = "";
-
-                    do {
-                        if (firstRow) {
-                            authorName = rs.getString("name") + " " + rs.getString("surname");
-                            result += "    " + authorID + " - " + authorName + "\n    Book written:\n";
-                            firstRow = false;
-                        }
-                        int isbn = rs.getInt("isbn");
-                        String title = rs.getString("title");
-
-                        if (title != null) {
-                            result += "        " + isbn + " - " + title + "\n";
-                        }
-                    } while (rs.next());
+                    out.append("Show Author:\n    No such author ID: ").append(String.valueOf(authorID));
+                    return false;
                 }
+                out.append("Show Author:\n");
+                boolean firstRow = true;
+
+                do {
+                    LibraryMetrics.rowRead();
+                    if (firstRow) {
+                        String authorName = rs.getString("name") + " " + rs.getString("surname");
+                        out.append("    ").append(String.valueOf(authorID)).append(" - ").append(authorName)
+                                .append("\n    Book written:\n");
+                        firstRow = false;
+                    }
+                    int isbn = rs.getInt("isbn");
+                    String title = rs.getString("title");
+
+                    if (title != null) {
+                        out.append("        ").append(String.valueOf(isbn)).append(" - ").append(title).append("\n");
+                        isbns.add(isbn);
+                    }
+                } while (rs.next());
+                return true;
             }
-        } catch (SQLException e) {
-            result = "Error showing author: " + e.getMessage();
         }
-
-        return result;
     }
 
 
@@ -274,14 +1022,20 @@ public class LibraryModel {
      * @return result
      */
     public String showAllAuthors() {
-	    StringBuilder result = new StringBuilder("Show All Authors:\n");
+        return metrics.time("showAllAuthors", this::showAllAuthorsImpl);
+    }
 
-        String query =  "SELECT DISTINCT a.authorid, a.name, a.surname " +
-                        "FROM author a " +
-                        "ORDER BY a.authorid;";
+    private String showAllAuthorsImpl() {
+        CatalogueReplica current = freshReplica();
+        if (current != null) {
+            return current.showAllAuthors();
+        }
+	    StringBuilder result = new StringBuilder("Show All Authors:\n");
 
-        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery(query)){
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(ALL_AUTHORS_QUERY); ResultSet rs = stmt.executeQuery()){
             while (rs.next()) {
+                LibraryMetrics.rowRead();
                 int count = rs.getInt("authorid");
                 String authorName = rs.getString("surname") + ", " + rs.getString("name");
                 result.append("    ").append(count).append(": ").append(authorName).append("\n");
@@ -302,53 +1056,89 @@ public class LibraryModel {
      * @return - result
      */
     public String showCustomer(int customerID) {
-	    String result = "";
+        return metrics.time("showCustomer", () -> showCustomerImpl(customerID));
+    }
+
+    private String showCustomerImpl(int customerID) {
+        CatalogueReplica current = freshReplica();
+        if (current != null) {
+            return current.showCustomer(customerID);
+        }
+        String result = customerCache.get(customerID);
+        if (result != null) {
+            return result;
+        }
+        long cacheVersion = customerCache.version();
+        List<Integer> isbns = new ArrayList<>();
+        StringBuilder out = new StringBuilder();
 
-        String query =  "SELECT c.customerid, c.f_name, c.l_name, c.city, cb.isbn, b.title " +
-                        "FROM customer c " +
-                        "JOIN cust_book cb ON c.customerid = cb.customerid " +
-                        "JOIN book b ON cb.isbn = b.isbn " +
-                        "WHERE c.customerid = ? "+
-                        "ORDER BY b.isbn DESC; ";
+        try {
+            if (renderCustomer(customerID, out, isbns)) {
+                customerCache.put(customerID, out.toString(), toIntArray(isbns), cacheVersion);
+            }
+        } catch (SQLException | IOException e) {
+            return "Error showing customer: " + e.getMessage();
+        }
 
-        boolean hasBorrowed = true;
+        return out.toString();
+    }
 
-        try (PreparedStatement stmt = con.prepareStatement(query)) {
+    /**
+     * Writes the same report as showCustomer, a row at a time
+     *
+     * @param customerID
+     * @param out - where the report goes
+     */
+    public void writeCustomer(int customerID, Appendable out) throws SQLException, IOException {
+        timeWrite("writeCustomer", () -> writeCustomerImpl(customerID, out));
+    }
+
+    private void writeCustomerImpl(int customerID, Appendable out) throws SQLException, IOException {
+        String cached = customerCache.get(customerID);
+        if (cached != null) {
+            out.append(cached);
+        } else {
+            renderCustomer(customerID, out, new ArrayList<>());
+        }
+    }
+
+    // Writes the customer report to out and the isbns they have borrowed to isbns, false if nothing was found
+    private boolean renderCustomer(int customerID, Appendable out, List<Integer> isbns) throws SQLException, IOException {
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(CUSTOMER_QUERY)) {
             stmt.setInt(1, customerID);
 
             try (ResultSet rs = stmt.executeQuery()) {
                 if (!rs.next()) {
-                    System.out.println("!rs.next");
-                } else {
-                    result = "Show Customer:\n";
-                    boolean firstRow = true;
-                    String custName = "";
-
-                    do {
-                        if (firstRow) {
-                            custName = rs.getString("f_name") + " " + rs.getString("l_name");
-                            result += "    " + customerID + ": " + custName + "\n    Book Borrowed:\n";
-                            firstRow = false;
-                        }
+                    return false;
+                }
+                out.append("Show Customer:\n");
+                boolean firstRow = true;
+
+                do {
+                    LibraryMetrics.rowRead();
+                    if (firstRow) {
+                        String custName = rs.getString("f_name") + " " + rs.getString("l_name");
+                        out.append("    ").append(String.valueOf(customerID)).append(": ").append(custName)
+                                .append("\n    Book Borrowed:\n");
+                        firstRow = false;
+                    }
 
-                        int isbn = rs.getInt("isbn");
-                        String title = rs.getString("title");
+                    int isbn = rs.getInt("isbn");
+                    String title = rs.getString("title");
 
-                        if (title != null) {
-                            result += "        " + isbn + " - " + title + "\n";
-                        }
-                        else {
-                            result += "\t (No books borrowed)";
-                        }
-                    } while (rs.next());
-                }
+                    if (title != null) {
+                        out.append("        ").append(String.valueOf(isbn)).append(" - ").append(title).append("\n");
+                        isbns.add(isbn);
+                    }
+                    else {
+                        out.append("\t (No books borrowed)");
+                    }
+                } while (rs.next());
+                return true;
             }
-        } catch (SQLException e) {
-            result = "Error showing customer: " + e.getMessage();
         }
-
-        return result;
-    }
+    }
 
 
     /**
@@ -357,13 +1147,20 @@ public class LibraryModel {
      * @return - result
      */
     public String showAllCustomers() {
+        return metrics.time("showAllCustomers", this::showAllCustomersImpl);
+    }
+
+    private String showAllCustomersImpl() {
+        CatalogueReplica current = freshReplica();
+        if (current != null) {
+            return current.showAllCustomers();
+        }
 	    StringBuilder result = new StringBuilder("Show all Customers:\n");
-        String query =  "SELECT DISTINCT c.customerid, c.f_name, c.l_name, c.city " +
-                        "FROM customer c " +
-                        "ORDER BY c.customerid;";
 
-        try (Statement stmt = con.createStatement(); ResultSet rs = stmt.executeQuery(query)){
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(ALL_CUSTOMERS_QUERY); ResultSet rs = stmt.executeQuery()){
             while (rs.next()) {
+                LibraryMetrics.rowRead();
                 int count = rs.getInt("customerid");
                 String custName = rs.getString("l_name") + ", " + rs.getString("f_name");
 
@@ -399,19 +1196,32 @@ public class LibraryModel {
      */
     public String borrowBook(int isbn, int customerID,
 			     int day, int month, int year) {
+        return metrics.time("borrowBook", () -> borrowBookImpl(isbn, customerID, day, month, year));
+    }
+
+    private String borrowBookImpl(int isbn, int customerID,
+			     int day, int month, int year) {
+        if (loanMode == LoanMode.OPTIMISTIC) {
+            return borrowBookOptimistic(isbn, customerID, day, month, year);
+        } else if (loanMode == LoanMode.SINGLE_STATEMENT) {
+            return borrowBookSingleStatement(isbn, customerID, day, month, year);
+        } else if (loanMode == LoanMode.GROUP_COMMIT) {
+            return groupCommitter().submit(con -> borrowOnce(con, isbn, customerID, day, month, year),
+                    () -> loanChanged(isbn, customerID), "Error borrowing book: ");
+        } else if (loanMode == LoanMode.STRIPED) {
+            return inShortTransaction(con -> borrowStripedOnce(con, isbn, customerID, day, month, year),
+                    () -> loanChanged(isbn, customerID), "Error borrowing book: ");
+        }
+
         String result;
-        String checkCustomerQuery = "SELECT * FROM Customer WHERE CustomerID = ? FOR UPDATE";
-        String checkBookQuery = "SELECT * FROM Book WHERE ISBN = ? AND NumLeft > 0 FOR UPDATE";
-        String insertCustBookQuery = "INSERT INTO Cust_Book (CustomerID, ISBN, DueDate) VALUES (?, ?, ?)";
-        String updateBookQuery = "UPDATE Book SET NumLeft = NumLeft - 1 WHERE ISBN = ?";
-        String getCustomerInfoQuery = "SELECT * FROM Customer WHERE CustomerID = ?";
-        String getBookInfoQuery = "SELECT * FROM Book WHERE ISBN = ?";
 
+        PooledConnection con = null;
         try {
+            con = pool.acquire();
             con.setAutoCommit(false);
 
             // Check if the customer exists and lock the customer row
-            try (PreparedStatement checkCustomerStmt = con.prepareStatement(checkCustomerQuery)) {
+            try (PreparedStatement checkCustomerStmt = con.prepareStatement(LOCK_CUSTOMER_QUERY)) {
                 checkCustomerStmt.setInt(1, customerID);
                 try (ResultSet rsCustomer = checkCustomerStmt.executeQuery()) {
                     if (!rsCustomer.next()) {
@@ -421,19 +1231,22 @@ public class LibraryModel {
             }
 
             // Check if the book exists and a copy is available, and lock the book row
-            try (PreparedStatement checkBookStmt = con.prepareStatement(checkBookQuery)) {
+            boolean inBookRow;
+            try (PreparedStatement checkBookStmt = con.prepareStatement(LOCK_BOOK_QUERY)) {
                 checkBookStmt.setInt(1, isbn);
                 try (ResultSet rsBook = checkBookStmt.executeQuery()) {
-                    if (!rsBook.next()) {
-                        throw new SQLException("Book is not available.");
-                    }
+                    inBookRow = rsBook.next();
                 }
             }
+            // A striped book keeps its copies in book_stripe: take and lock one of those instead
+            if (!inBookRow && (!striped || takeCopyFromStripes(con, isbn) == null)) {
+                throw new SQLException("Book is not available.");
+            }
 
-            JOptionPane.showMessageDialog(dialogParent, "Locked the tuple(s), ready to update.\n Click OK to continue");
+            showMessageAndWait("Locked the tuple(s), ready to update.\n Click OK to continue");
 
             // Insert a tuple into the Cust_Book table
-            try (PreparedStatement insertCustBookStmt = con.prepareStatement(insertCustBookQuery)) {
+            try (PreparedStatement insertCustBookStmt = con.prepareStatement(INSERT_LOAN_QUERY)) {
                 insertCustBookStmt.setInt(1, customerID);
                 insertCustBookStmt.setInt(2, isbn);
                 insertCustBookStmt.setDate(3, java.sql.Date.valueOf(String.format("%d-%02d-%02d", year, month + 1, day)));
@@ -441,17 +1254,20 @@ public class LibraryModel {
             }
 
             // Update the Book table to decrease the number of copies left
-            try (PreparedStatement updateBookStmt = con.prepareStatement(updateBookQuery)) {
-                updateBookStmt.setInt(1, isbn);
-                updateBookStmt.executeUpdate();
+            if (inBookRow) {
+                try (PreparedStatement updateBookStmt = con.prepareStatement(TAKE_COPY_QUERY)) {
+                    updateBookStmt.setInt(1, isbn);
+                    updateBookStmt.executeUpdate();
+                }
             }
 
             con.commit();
+            loanChanged(isbn, customerID);
 
             String customerName = "";
             String bookTitle = "";
 
-            try (PreparedStatement getCustomerInfoStmt = con.prepareStatement(getCustomerInfoQuery)) {
+            try (PreparedStatement getCustomerInfoStmt = con.prepareStatement(CUSTOMER_INFO_QUERY)) {
                 getCustomerInfoStmt.setInt(1, customerID);
                 try (ResultSet rsCustomer = getCustomerInfoStmt.executeQuery()) {
                     if (rsCustomer.next()) {
@@ -460,7 +1276,7 @@ public class LibraryModel {
                 }
             }
 
-            try (PreparedStatement getBookInfoStmt = con.prepareStatement(getBookInfoQuery)) {
+            try (PreparedStatement getBookInfoStmt = con.prepareStatement(BOOK_INFO_QUERY)) {
                 getBookInfoStmt.setInt(1, isbn);
                 try (ResultSet rsBook = getBookInfoStmt.executeQuery()) {
                     if (rsBook.next()) {
@@ -469,29 +1285,200 @@ public class LibraryModel {
                 }
             }
 
+            result = formatBorrowResult(isbn, bookTitle, customerID, customerName, day, month, year);
+
+        } catch (SQLException e) {
+            try {
+                if (con != null) {
+                    con.rollback();
+                }
+            } catch (SQLException rollbackEx) {
+                result = "Error during rollback: " + rollbackEx.getMessage();
+            }
+            result = "Error borrowing book: " + e.getMessage();
+        } finally {
+            if (con != null) {
+                try {
+                    con.setAutoCommit(true);
+                } catch (SQLException e) {
+                    result = "Error restoring auto-commit mode: " + e.getMessage();
+                }
+                con.close();
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Borrows several books for one customer in a single transaction. The customer and book rows
+     * are locked once, the loans are inserted and the copies left decremented with batched
+     * statements, and everything is committed together. Books that cannot be loaned are skipped
+     * and reported, without stopping the rest.
+     *
+     * @param isbns - books to borrow
+     * @param customerID
+     * @param day
+     * @param month
+     * @param year
+     *
+     * @return result - one line per book saying whether it was loaned
+     */
+    public String borrowBooks(List<Integer> isbns, int customerID,
+                              int day, int month, int year) {
+        return metrics.time("borrowBooks", () -> borrowBooksImpl(isbns, customerID, day, month, year));
+    }
+
+    private String borrowBooksImpl(List<Integer> isbns, int customerID,
+                              int day, int month, int year) {
+        String result;
+        String checkCustomerQuery = "SELECT L_Name, F_Name FROM Customer WHERE CustomerID = ? FOR UPDATE";
+        // Locked in isbn order so two desks borrowing overlapping stacks cannot deadlock
+        String checkBooksQuery = "SELECT ISBN, Title, NumLeft FROM Book WHERE ISBN = ANY (?) ORDER BY ISBN FOR UPDATE";
+        String checkLoansQuery = "SELECT ISBN FROM Cust_Book WHERE CustomerID = ? AND ISBN = ANY (?)";
+        String insertCustBookQuery = "INSERT INTO Cust_Book (CustomerID, ISBN, DueDate) VALUES (?, ?, ?)";
+        String updateBookQuery = "UPDATE Book SET NumLeft = NumLeft - 1 WHERE ISBN = ?";
+
+        java.sql.Date dueDate = java.sql.Date.valueOf(String.format("%d-%02d-%02d", year, month + 1, day));
+
+        PooledConnection con = null;
+        try {
+            con = pool.acquire();
+            con.setAutoCommit(false);
+            Array isbnArray = con.connection().createArrayOf("integer", isbns.toArray());
+
+            // Check if the customer exists and lock the customer row
+            String customerName;
+            try (PreparedStatement checkCustomerStmt = con.prepareStatement(checkCustomerQuery)) {
+                checkCustomerStmt.setInt(1, customerID);
+                try (ResultSet rsCustomer = checkCustomerStmt.executeQuery()) {
+                    if (!rsCustomer.next()) {
+                        throw new SQLException("Customer does not exist.");
+                    }
+                    customerName = rsCustomer.getString("L_Name") + " " + rsCustomer.getString("F_Name");
+                }
+            }
+
+            // Lock all the requested books at once
+            Map<Integer, String> titles = new HashMap<>();
+            Set<Integer> available = new HashSet<>();
+            try (PreparedStatement checkBooksStmt = con.prepareStatement(checkBooksQuery)) {
+                checkBooksStmt.setArray(1, isbnArray);
+                try (ResultSet rsBook = checkBooksStmt.executeQuery()) {
+                    while (rsBook.next()) {
+                        LibraryMetrics.rowRead();
+                        titles.put(rsBook.getInt("ISBN"), rsBook.getString("Title"));
+                        if (rsBook.getInt("NumLeft") > 0) {
+                            available.add(rsBook.getInt("ISBN"));
+                        }
+                    }
+                }
+            }
+
+            // Books the customer already has out cannot be borrowed again
+            Set<Integer> onLoan = new HashSet<>();
+            try (PreparedStatement checkLoansStmt = con.prepareStatement(checkLoansQuery)) {
+                checkLoansStmt.setInt(1, customerID);
+                checkLoansStmt.setArray(2, isbnArray);
+                try (ResultSet rsLoan = checkLoansStmt.executeQuery()) {
+                    while (rsLoan.next()) {
+                        LibraryMetrics.rowRead();
+                        onLoan.add(rsLoan.getInt("ISBN"));
+                    }
+                }
+            }
+
+            // Books with none left in their row may have copies in book_stripe. Those are taken
+            // now, in isbn order like the locks, and need no update of the book row.
+            Set<Integer> fromStripes = new HashSet<>();
+            if (striped) {
+                for (int isbn : new TreeSet<>(titles.keySet())) {
+                    if (!available.contains(isbn) && !onLoan.contains(isbn) && takeCopyFromStripes(con, isbn) != null) {
+                        available.add(isbn);
+                        fromStripes.add(isbn);
+                    }
+                }
+            }
+
+            // Work out the outcome of each book before changing anything
+            StringBuilder lines = new StringBuilder();
+            Set<Integer> seen = new HashSet<>();
+            int loaned = 0;
+            try (PreparedStatement insertCustBookStmt = con.prepareStatement(insertCustBookQuery);
+                 PreparedStatement updateBookStmt = con.prepareStatement(updateBookQuery)) {
+                for (int isbn : isbns) {
+                    String failure = null;
+                    if (!seen.add(isbn)) {
+                        failure = "Listed more than once.";
+                    } else if (!titles.containsKey(isbn)) {
+                        failure = "No such book.";
+                    } else if (onLoan.contains(isbn)) {
+                        failure = "Already borrowed by this customer.";
+                    } else if (!available.contains(isbn)) {
+                        failure = "Book is not available.";
+                    }
+
+                    if (failure != null) {
+                        lines.append("    Book: ").append(isbn).append(" - Not loaned: ").append(failure).append("\n");
+                        continue;
+                    }
+
+                    insertCustBookStmt.setInt(1, customerID);
+                    insertCustBookStmt.setInt(2, isbn);
+                    insertCustBookStmt.setDate(3, dueDate);
+                    insertCustBookStmt.addBatch();
+
+                    if (!fromStripes.contains(isbn)) {
+                        updateBookStmt.setInt(1, isbn);
+                        updateBookStmt.addBatch();
+                    }
+
+                    lines.append("    Book: ").append(isbn).append(" (").append(titles.get(isbn)).append(") - Loaned\n");
+                    loaned++;
+                }
+
+                if (loaned > 0) {
+                    showMessageAndWait("Locked the tuple(s), ready to update.\n Click OK to continue");
+                    insertCustBookStmt.executeBatch();
+                    updateBookStmt.executeBatch();
+                }
+            }
+
+            con.commit();
+            for (int isbn : isbns) {
+                if (available.contains(isbn)) {
+                    loanChanged(isbn, customerID);
+                }
+            }
+
             // Format the due date
             java.text.DateFormat dateFormat = new java.text.SimpleDateFormat("dd MMM yyyy");
-            java.util.Date dueDate = new java.sql.Date(java.sql.Date.valueOf(String.format("%d-%02d-%02d", year, month + 1, day)).getTime());
-            String formattedDueDate = dateFormat.format(dueDate);
-
+            String formattedDueDate = dateFormat.format(new java.util.Date(dueDate.getTime()));
 
-            result = "Borrow Book:\n" +
-                    "    Book: " + isbn + " (" + bookTitle + ")\n" +
+            result = "Borrow Books:\n" +
                     "    Loaned to: " + customerID + " (" + customerName + ")\n" +
-                    "    Due Date: " + formattedDueDate;
+                    "    Due Date: " + formattedDueDate + "\n" +
+                    lines +
+                    "    " + loaned + " of " + isbns.size() + " book(s) loaned";
 
         } catch (SQLException e) {
             try {
-                con.rollback();
+                if (con != null) {
+                    con.rollback();
+                }
             } catch (SQLException rollbackEx) {
                 result = "Error during rollback: " + rollbackEx.getMessage();
             }
-            result = "Error borrowing book: " + e.getMessage();
+            result = "Error borrowing books: " + e.getMessage();
         } finally {
-            try {
-                con.setAutoCommit(true);
-            } catch (SQLException e) {
-                result = "Error restoring auto-commit mode: " + e.getMessage();
+            if (con != null) {
+                try {
+                    con.setAutoCommit(true);
+                } catch (SQLException e) {
+                    result = "Error restoring auto-commit mode: " + e.getMessage();
+                }
+                con.close();
             }
         }
 
@@ -507,17 +1494,31 @@ public class LibraryModel {
      * @return result
      */
     public String returnBook(int isbn, int customerid) {
+        return metrics.time("returnBook", () -> returnBookImpl(isbn, customerid));
+    }
+
+    private String returnBookImpl(int isbn, int customerid) {
+        if (loanMode == LoanMode.OPTIMISTIC) {
+            return returnBookOptimistic(isbn, customerid);
+        } else if (loanMode == LoanMode.SINGLE_STATEMENT) {
+            return returnBookSingleStatement(isbn, customerid);
+        } else if (loanMode == LoanMode.GROUP_COMMIT) {
+            return groupCommitter().submit(con -> returnOnce(con, isbn, customerid),
+                    () -> loanChanged(isbn, customerid), "Error returning book: ");
+        } else if (loanMode == LoanMode.STRIPED) {
+            return inShortTransaction(con -> returnStripedOnce(con, isbn, customerid),
+                    () -> loanChanged(isbn, customerid), "Error returning book: ");
+        }
+
         String result;
-        String deleteFromCustBookQuery = "DELETE FROM Cust_Book WHERE CustomerID = ? AND ISBN = ?";
-        String updateBookQuery = "UPDATE Book SET NumLeft = NumLeft + 1 WHERE ISBN = ?";
-        String getCustomerInfoQuery = "SELECT * FROM Customer WHERE CustomerID = ?";
-        String getBookInfoQuery = "SELECT * FROM Book WHERE ISBN = ?";
 
+        PooledConnection con = null;
         try {
+            con = pool.acquire();
             con.setAutoCommit(false);
 
             // Delete the entry from the Cust_Book table
-            try (PreparedStatement deleteCustBookStmt = con.prepareStatement(deleteFromCustBookQuery)) {
+            try (PreparedStatement deleteCustBookStmt = con.prepareStatement(DELETE_LOAN_QUERY)) {
                 deleteCustBookStmt.setInt(1, customerid);
                 deleteCustBookStmt.setInt(2, isbn);
                 int rowsDeleted = deleteCustBookStmt.executeUpdate();
@@ -526,21 +1527,19 @@ public class LibraryModel {
                 }
             }
 
-            JOptionPane.showMessageDialog(dialogParent, "Locked the tuple(s), ready to update.\n Click OK to continue");
+            showMessageAndWait("Locked the tuple(s), ready to update.\n Click OK to continue");
 
             // Update the Book table to increase the number of copies left
-            try (PreparedStatement updateBookStmt = con.prepareStatement(updateBookQuery)) {
-                updateBookStmt.setInt(1, isbn);
-                updateBookStmt.executeUpdate();
-            }
+            putCopyBack(con, isbn);
 
             con.commit();
+            loanChanged(isbn, customerid);
 
             // Retrieve customer and book information for the final output
             String customerName = "";
             String bookTitle = "";
 
-            try (PreparedStatement getCustomerInfoStmt = con.prepareStatement(getCustomerInfoQuery)) {
+            try (PreparedStatement getCustomerInfoStmt = con.prepareStatement(CUSTOMER_INFO_QUERY)) {
                 getCustomerInfoStmt.setInt(1, customerid);
                 try (ResultSet rsCustomer = getCustomerInfoStmt.executeQuery()) {
                     if (rsCustomer.next()) {
@@ -549,7 +1548,7 @@ public class LibraryModel {
                 }
             }
 
-            try (PreparedStatement getBookInfoStmt = con.prepareStatement(getBookInfoQuery)) {
+            try (PreparedStatement getBookInfoStmt = con.prepareStatement(BOOK_INFO_QUERY)) {
                 getBookInfoStmt.setInt(1, isbn);
                 try (ResultSet rsBook = getBookInfoStmt.executeQuery()) {
                     if (rsBook.next()) {
@@ -558,33 +1557,913 @@ public class LibraryModel {
                 }
             }
 
-            result = "Return Book:\n" +
-                    "    Book: " + isbn + " (" + bookTitle + ")\n" +
-                    "    Returned by: " + customerid + " (" + customerName + ")";
+            result = formatReturnResult(isbn, bookTitle, customerid, customerName);
 
         } catch (SQLException e) {
             try {
-                con.rollback();
+                if (con != null) {
+                    con.rollback();
+                }
             } catch (SQLException rollbackEx) {
                 result = "Error during rollback: " + rollbackEx.getMessage();
             }
             result = "Error returning book: " + e.getMessage();
         } finally {
+            if (con != null) {
+                try {
+                    con.setAutoCommit(true);
+                } catch (SQLException e) {
+                    result = "Error restoring auto-commit mode: " + e.getMessage();
+                }
+                con.close();
+            }
+        }
+
+        return result;
+
+    }
+
+    /**
+     * @return how borrowBook and returnBook currently make their changes
+     */
+    public LoanMode getLoanMode() {
+        return loanMode;
+    }
+
+    /**
+     * Switches how borrowBook and returnBook make their changes, e.g. to compare throughput.
+     * Every mode falls back to a book's stripes once its book row has no copies left.
+     *
+     * @param loanMode
+     */
+    public void setLoanMode(LoanMode loanMode) {
+        this.loanMode = loanMode;
+    }
+
+    // The committer for LoanMode.GROUP_COMMIT, waiting library.groupCommit.windowMs for more loans
+    // after the first and taking at most library.groupCommit.maxBatch into one transaction
+    private synchronized GroupCommitter groupCommitter() {
+        if (groupCommitter == null) {
+            groupCommitter = new GroupCommitter(pool,
+                    Long.getLong("library.groupCommit.windowMs", 5),
+                    Integer.getInteger("library.groupCommit.maxBatch", 64),
+                    Integer.getInteger("library.loan.retries", 5));
+        }
+        return groupCommitter;
+    }
+
+
+    /**
+     * Borrows a book without holding locks across user interaction. A conditional update takes a
+     * copy only if one is left, the loan is inserted, and the transaction commits straight away
+     * without a dialog. Serialization failures and deadlocks are retried.
+     */
+    private String borrowBookOptimistic(int isbn, int customerID, int day, int month, int year) {
+        return inShortTransaction(con -> borrowOnce(con, isbn, customerID, day, month, year),
+                () -> loanChanged(isbn, customerID), "Error borrowing book: ");
+    }
+
+    /**
+     * Runs a loan in a transaction of its own, committed straight away, retrying serialization
+     * failures and deadlocks
+     *
+     * @param operation - the loan's statements
+     * @param committed - run after the commit
+     * @param errorPrefix - put before the message of an SQLException
+     */
+    private String inShortTransaction(GroupCommitter.Operation operation, Runnable committed, String errorPrefix) {
+        int attempts = Integer.getInteger("library.loan.retries", 5);
+        for (int attempt = 1; ; attempt++) {
+            PooledConnection con = null;
             try {
-                con.setAutoCommit(true);
+                con = pool.acquire();
+                con.setAutoCommit(false);
+                String result = operation.run(con);
+                con.commit();
+                committed.run();
+                return result;
             } catch (SQLException e) {
-                result = "Error restoring auto-commit mode: " + e.getMessage();
+                rollbackQuietly(con);
+                if (attempt < attempts && isRetryable(e)) {
+                    backOff(attempt);
+                    continue;
+                }
+                return errorPrefix + e.getMessage();
+            } finally {
+                if (con != null) {
+                    con.close();
+                }
             }
         }
+    }
+
+    /**
+     * The statements of an optimistic borrow, run in the caller's transaction.
+     * Fails with an SQLException if the customer does not exist or no copy is left.
+     */
+    private String borrowOnce(PooledConnection con, int isbn, int customerID,
+                              int day, int month, int year) throws SQLException {
+        String customerName;
+        try (PreparedStatement getCustomerInfoStmt = con.prepareStatement(CUSTOMER_NAME_QUERY)) {
+            getCustomerInfoStmt.setInt(1, customerID);
+            try (ResultSet rsCustomer = getCustomerInfoStmt.executeQuery()) {
+                if (!rsCustomer.next()) {
+                    throw new SQLException("Customer does not exist.");
+                }
+                customerName = rsCustomer.getString("L_Name") + " " + rsCustomer.getString("F_Name");
+            }
+        }
+
+        // Only succeeds if a copy is left when the row lock is granted
+        String bookTitle = null;
+        try (PreparedStatement takeCopyStmt = con.prepareStatement(CLAIM_COPY_QUERY)) {
+            takeCopyStmt.setInt(1, isbn);
+            try (ResultSet rsBook = takeCopyStmt.executeQuery()) {
+                if (rsBook.next()) {
+                    bookTitle = rsBook.getString("Title");
+                }
+            }
+        }
+        if (bookTitle == null && striped) {
+            bookTitle = takeCopyFromStripes(con, isbn);
+        }
+        if (bookTitle == null) {
+            throw new SQLException("Book is not available.");
+        }
+
+        try (PreparedStatement insertCustBookStmt = con.prepareStatement(INSERT_LOAN_QUERY)) {
+            insertCustBookStmt.setInt(1, customerID);
+            insertCustBookStmt.setInt(2, isbn);
+            insertCustBookStmt.setDate(3, java.sql.Date.valueOf(String.format("%d-%02d-%02d", year, month + 1, day)));
+            insertCustBookStmt.executeUpdate();
+        }
+
+        return formatBorrowResult(isbn, bookTitle, customerID, customerName, day, month, year);
+    }
 
-        return result;
 
+    /**
+     * Returns a book in one short transaction without a dialog, retrying serialization failures
+     * and deadlocks
+     */
+    private String returnBookOptimistic(int isbn, int customerid) {
+        return inShortTransaction(con -> returnOnce(con, isbn, customerid),
+                () -> loanChanged(isbn, customerid), "Error returning book: ");
+    }
+
+    /**
+     * The statements of an optimistic return, run in the caller's transaction.
+     * Fails with an SQLException if the customer does not have the book.
+     */
+    private String returnOnce(PooledConnection con, int isbn, int customerid) throws SQLException {
+        try (PreparedStatement deleteCustBookStmt = con.prepareStatement(DELETE_LOAN_QUERY)) {
+            deleteCustBookStmt.setInt(1, customerid);
+            deleteCustBookStmt.setInt(2, isbn);
+            if (deleteCustBookStmt.executeUpdate() == 0) {
+                throw new SQLException("No entry found in Cust_Book for the given customer and book.");
+            }
+        }
+
+        String bookTitle = putCopyBack(con, isbn);
+
+        String customerName = "";
+        try (PreparedStatement getCustomerInfoStmt = con.prepareStatement(CUSTOMER_NAME_QUERY)) {
+            getCustomerInfoStmt.setInt(1, customerid);
+            try (ResultSet rsCustomer = getCustomerInfoStmt.executeQuery()) {
+                if (rsCustomer.next()) {
+                    customerName = rsCustomer.getString("L_Name") + " " + rsCustomer.getString("F_Name");
+                }
+            }
+        }
+
+        return formatReturnResult(isbn, bookTitle, customerid, customerName);
+    }
+
+
+    /**
+     * The statements of a striped borrow, run in the caller's transaction. Fails with an
+     * SQLException if the customer does not exist or no copy is left, see takeStripedCopy.
+     */
+    private String borrowStripedOnce(PooledConnection con, int isbn, int customerID,
+                                     int day, int month, int year) throws SQLException {
+        String customerName;
+        try (PreparedStatement getCustomerInfoStmt = con.prepareStatement(CUSTOMER_NAME_QUERY)) {
+            getCustomerInfoStmt.setInt(1, customerID);
+            try (ResultSet rsCustomer = getCustomerInfoStmt.executeQuery()) {
+                if (!rsCustomer.next()) {
+                    throw new SQLException("Customer does not exist.");
+                }
+                customerName = rsCustomer.getString("L_Name") + " " + rsCustomer.getString("F_Name");
+            }
+        }
+
+        String bookTitle = takeStripedCopy(con, isbn);
+        if (bookTitle == null) {
+            throw new SQLException("Book is not available.");
+        }
+
+        try (PreparedStatement insertCustBookStmt = con.prepareStatement(INSERT_LOAN_QUERY)) {
+            insertCustBookStmt.setInt(1, customerID);
+            insertCustBookStmt.setInt(2, isbn);
+            insertCustBookStmt.setDate(3, java.sql.Date.valueOf(String.format("%d-%02d-%02d", year, month + 1, day)));
+            insertCustBookStmt.executeUpdate();
+        }
+
+        return formatBorrowResult(isbn, bookTitle, customerID, customerName, day, month, year);
+    }
+
+    /**
+     * Takes one copy of a book in the caller's transaction: from a random stripe of the book that
+     * no other transaction has locked; failing that from the book row itself, which holds the
+     * copies of unstriped books; and failing that from a stripe another desk has locked, once it
+     * is released.
+     *
+     * @return the book's title, or null if no copy is left
+     */
+    private static String takeStripedCopy(PooledConnection con, int isbn) throws SQLException {
+        return firstTitle(con, isbn, CLAIM_STRIPE_QUERY, CLAIM_COPY_QUERY, WAIT_FOR_STRIPE_QUERY);
+    }
+
+    /**
+     * Takes one copy of a book from its stripes alone, for the other loan modes once the book
+     * row has none left: from a random unlocked stripe, or else the first to be released
+     *
+     * @return the book's title, or null if its stripes have no copies either
+     */
+    private static String takeCopyFromStripes(PooledConnection con, int isbn) throws SQLException {
+        return firstTitle(con, isbn, CLAIM_STRIPE_QUERY, WAIT_FOR_STRIPE_QUERY);
+    }
+
+    /**
+     * Puts a returned copy back in the caller's transaction: into the book row, or for a striped
+     * book into a random unlocked stripe, or else the first to be released, so the copies of a
+     * striped book stay spread over its stripes
+     *
+     * @return the book's title, "" if there is no such book
+     */
+    private String putCopyBack(PooledConnection con, int isbn) throws SQLException {
+        String title = striped
+                ? firstTitle(con, isbn, UNSTRIPED_PUT_COPY_BACK_QUERY, RETURN_TO_STRIPE_QUERY, WAIT_TO_RETURN_TO_STRIPE_QUERY)
+                : firstTitle(con, isbn, RETURN_COPY_QUERY);
+        return title == null ? "" : title;
     }
 
-    // Exit program does the job
+    // Runs UPDATE ... RETURNING title statements with the isbn as every parameter until one
+    // changes a row, returning its title, or null if none did
+    private static String firstTitle(PooledConnection con, int isbn, String... queries) throws SQLException {
+        for (String query : queries) {
+            try (PreparedStatement stmt = con.prepareStatement(query)) {
+                int parameters = (int) query.chars().filter(c -> c == '?').count();
+                for (int i = 1; i <= parameters; i++) {
+                    stmt.setInt(i, isbn);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    if (rs.next()) {
+                        return rs.getString(1) == null ? "" : rs.getString(1);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The statements of a striped return, run in the caller's transaction. The copy goes back to
+     * a random unlocked stripe, to the book row if the book has no stripes, or else to the first
+     * stripe to be released.
+     */
+    private String returnStripedOnce(PooledConnection con, int isbn, int customerid) throws SQLException {
+        try (PreparedStatement deleteCustBookStmt = con.prepareStatement(DELETE_LOAN_QUERY)) {
+            deleteCustBookStmt.setInt(1, customerid);
+            deleteCustBookStmt.setInt(2, isbn);
+            if (deleteCustBookStmt.executeUpdate() == 0) {
+                throw new SQLException("No entry found in Cust_Book for the given customer and book.");
+            }
+        }
+
+        firstTitle(con, isbn, RETURN_TO_STRIPE_QUERY, UNSTRIPED_PUT_COPY_BACK_QUERY, WAIT_TO_RETURN_TO_STRIPE_QUERY);
+
+        try (PreparedStatement getInfoStmt = con.prepareStatement(BOOK_AND_CUSTOMER_QUERY)) {
+            getInfoStmt.setInt(1, isbn);
+            getInfoStmt.setInt(2, customerid);
+            try (ResultSet rs = getInfoStmt.executeQuery()) {
+                rs.next();
+                String bookTitle = rs.getString("Title") == null ? "" : rs.getString("Title");
+                String customerName = rs.getString("L_Name") == null ? "" : rs.getString("L_Name") + " " + rs.getString("F_Name");
+                return formatReturnResult(isbn, bookTitle, customerid, customerName);
+            }
+        }
+    }
+
+
+    /**
+     * Borrows a book in one round trip. The customer check, the conditional update of the copies
+     * left, the loan insert and the lookups for the output all happen in one statement, which is
+     * atomic on its own, so no explicit transaction is needed.
+     */
+    private String borrowBookSingleStatement(int isbn, int customerID, int day, int month, int year) {
+        int attempts = Integer.getInteger("library.loan.retries", 5);
+        for (int attempt = 1; ; attempt++) {
+            try (PooledConnection con = pool.acquire();
+                 PreparedStatement stmt = con.prepareStatement(BORROW_STATEMENT)) {
+                stmt.setInt(1, customerID);
+                stmt.setInt(2, isbn);
+                stmt.setDate(3, java.sql.Date.valueOf(String.format("%d-%02d-%02d", year, month + 1, day)));
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    if (!rs.getBoolean("customer_found")) {
+                        throw new SQLException("Customer does not exist.");
+                    }
+                    if (rs.getBoolean("loaned")) {
+                        loanChanged(isbn, customerID);
+                        return formatBorrowResult(isbn, rs.getString("Title"), customerID,
+                                rs.getString("L_Name") + " " + rs.getString("F_Name"), day, month, year);
+                    }
+                    if (!striped) {
+                        throw new SQLException("Book is not available.");
+                    }
+                }
+            } catch (SQLException e) {
+                if (attempt < attempts && isRetryable(e)) {
+                    backOff(attempt);
+                    continue;
+                }
+                return "Error borrowing book: " + e.getMessage();
+            }
+            // The book row has no copies left, but its stripes may have
+            return inShortTransaction(con -> borrowOnce(con, isbn, customerID, day, month, year),
+                    () -> loanChanged(isbn, customerID), "Error borrowing book: ");
+        }
+    }
+
+    /**
+     * Returns a book in one round trip: deletes the loan, puts the copy back and looks up the
+     * title and customer name in a single statement
+     */
+    private String returnBookSingleStatement(int isbn, int customerid) {
+        int attempts = Integer.getInteger("library.loan.retries", 5);
+        for (int attempt = 1; ; attempt++) {
+            try (PooledConnection con = pool.acquire();
+                 PreparedStatement stmt = con.prepareStatement(striped ? STRIPED_RETURN_STATEMENT : RETURN_STATEMENT)) {
+                stmt.setInt(1, customerid);
+                stmt.setInt(2, isbn);
+                stmt.setInt(3, customerid);
+
+                try (ResultSet rs = stmt.executeQuery()) {
+                    rs.next();
+                    if (!rs.getBoolean("returned")) {
+                        throw new SQLException("No entry found in Cust_Book for the given customer and book.");
+                    }
+                    loanChanged(isbn, customerid);
+                    String customerName = rs.getBoolean("customer_found")
+                            ? rs.getString("L_Name") + " " + rs.getString("F_Name") : "";
+                    return formatReturnResult(isbn, rs.getString("Title"), customerid, customerName);
+                }
+            } catch (SQLException e) {
+                if (attempt < attempts && isRetryable(e)) {
+                    backOff(attempt);
+                    continue;
+                }
+                return "Error returning book: " + e.getMessage();
+            }
+        }
+    }
+
+
+    private static String formatBorrowResult(int isbn, String bookTitle, int customerID, String customerName,
+                                             int day, int month, int year) {
+        // Format the due date
+        java.text.DateFormat dateFormat = new java.text.SimpleDateFormat("dd MMM yyyy");
+        java.util.Date dueDate = new java.sql.Date(java.sql.Date.valueOf(String.format("%d-%02d-%02d", year, month + 1, day)).getTime());
+        String formattedDueDate = dateFormat.format(dueDate);
+
+        return "Borrow Book:\n" +
+                "    Book: " + isbn + " (" + bookTitle + ")\n" +
+                "    Loaned to: " + customerID + " (" + customerName + ")\n" +
+                "    Due Date: " + formattedDueDate;
+    }
+
+    private static String formatReturnResult(int isbn, String bookTitle, int customerid, String customerName) {
+        return "Return Book:\n" +
+                "    Book: " + isbn + " (" + bookTitle + ")\n" +
+                "    Returned by: " + customerid + " (" + customerName + ")";
+    }
+
+    // Serialization failures and deadlocks are worth another go, anything else is reported
+    private static boolean isRetryable(SQLException e) {
+        String state = e.getSQLState();
+        return "40001".equals(state) || "40P01".equals(state);
+    }
+
+    // Randomised, growing pause so retrying desks do not collide again straight away
+    private static void backOff(int attempt) {
+        try {
+            Thread.sleep((long) (Math.random() * 10 * (1L << Math.min(attempt, 6))));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void rollbackQuietly(PooledConnection con) {
+        if (con != null) {
+            try {
+                con.rollback();
+            } catch (SQLException e) {
+                // The pool retires connections it cannot reset
+            }
+        }
+    }
+
+
+    /**
+     * Returns many books at once, e.g. a pile from the returns drop-box. The pairs are processed in
+     * chunks of library.bulk.chunkSize, each chunk deleting its loans and putting the copies back with
+     * batched statements in its own transaction. No dialog is shown.
+     *
+     * @param isbns
+     * @param customerIDs - customerIDs[i] is returning isbns[i]
+     * @return result - one line per pair, and the overall throughput
+     */
+    public String returnBooks(int[] isbns, int[] customerIDs) {
+        return metrics.time("returnBooks", () -> returnBooksImpl(isbns, customerIDs));
+    }
+
+    private String returnBooksImpl(int[] isbns, int[] customerIDs) {
+        if (isbns.length != customerIDs.length) {
+            throw new IllegalArgumentException("Need one customer ID per ISBN");
+        }
+        BulkReturn bulk = new BulkReturn();
+        try (PooledConnection con = pool.acquire()) {
+            for (int i = 0; i < isbns.length; i++) {
+                bulk.add(con, isbns[i], customerIDs[i]);
+            }
+            bulk.finish(con);
+        } catch (SQLException e) {
+            return "Error returning books: " + e.getMessage();
+        }
+        return bulk.report();
+    }
+
+
+    /**
+     * Returns every "isbn,customerid" pair listed in a file, one per line. Blank lines and lines
+     * starting with # are skipped. The file is read a chunk at a time, so it can be any size.
+     *
+     * @param file
+     * @return result - one line per pair, and the overall throughput
+     */
+    public String returnBooksFromFile(File file) {
+        return metrics.time("returnBooksFromFile", () -> returnBooksFromFileImpl(file));
+    }
+
+    private String returnBooksFromFileImpl(File file) {
+        BulkReturn bulk = new BulkReturn();
+        try (PooledConnection con = pool.acquire();
+             BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNo = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("[,\\s]+");
+                try {
+                    if (fields.length != 2) {
+                        throw new NumberFormatException();
+                    }
+                    bulk.add(con, Integer.parseInt(fields[0]), Integer.parseInt(fields[1]));
+                } catch (NumberFormatException e) {
+                    bulk.lines.append("    Line ").append(lineNo).append(" - Not an isbn,customerid pair: ").append(line).append("\n");
+                }
+            }
+            bulk.finish(con);
+        } catch (IOException e) {
+            return "Error reading returns file: " + e.getMessage();
+        } catch (SQLException e) {
+            return "Error returning books: " + e.getMessage();
+        }
+        return bulk.report();
+    }
+
+
+    /**
+     * Collects (isbn, customerid) pairs and returns them a chunk at a time
+     */
+    private class BulkReturn {
+        private final int chunkSize = Integer.getInteger("library.bulk.chunkSize", 500);
+        private final int[] isbns = new int[chunkSize];
+        private final int[] customerIDs = new int[chunkSize];
+        private int pending = 0;
+
+        private final StringBuilder lines = new StringBuilder();
+        private final long start = System.nanoTime();
+        private int rows = 0;
+        private int returned = 0;
+        private int chunks = 0;
+
+        void add(PooledConnection con, int isbn, int customerID) throws SQLException {
+            isbns[pending] = isbn;
+            customerIDs[pending] = customerID;
+            pending++;
+            if (pending == chunkSize) {
+                flush(con);
+            }
+        }
+
+        void finish(PooledConnection con) throws SQLException {
+            if (pending > 0) {
+                flush(con);
+            }
+        }
+
+        // Deletes the loans in one batch, then puts back one copy per deleted loan in a second batch.
+        // With stripes installed the second batch skips striped books, and a third spreads their
+        // copies over their stripes, the remainder to stripes picked at random, so they do not
+        // drift back into the hot book row.
+        // Rows are locked in (isbn, customerid) order, like the other multi-row paths, so concurrent
+        // bulk returns cannot deadlock on each other; serialization failures are retried.
+        private void flush(PooledConnection con) throws SQLException {
+            String deleteFromCustBookQuery = "DELETE FROM Cust_Book WHERE CustomerID = ? AND ISBN = ?";
+            String updateBookQuery = striped
+                    ? "UPDATE Book SET NumLeft = NumLeft + ? WHERE ISBN = ? AND NOT EXISTS (SELECT 1 FROM book_stripe WHERE isbn = ?)"
+                    : "UPDATE Book SET NumLeft = NumLeft + ? WHERE ISBN = ?";
+            String updateStripesQuery = "UPDATE book_stripe b SET numleft = b.numleft + s.copies " +
+                    "FROM (SELECT stripe, ?::integer / count(*) OVER () " +
+                    "             + CASE WHEN row_number() OVER (ORDER BY random()) <= ?::integer % count(*) OVER () THEN 1 ELSE 0 END AS copies " +
+                    "      FROM book_stripe WHERE isbn = ?) s " +
+                    "WHERE b.isbn = ? AND b.stripe = s.stripe AND s.copies > 0";
+
+            Integer[] order = new Integer[pending];
+            for (int i = 0; i < pending; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> isbns[a] != isbns[b] ? Integer.compare(isbns[a], isbns[b])
+                    : Integer.compare(customerIDs[a], customerIDs[b]));
+
+            int attempts = Integer.getInteger("library.loan.retries", 5);
+            con.setAutoCommit(false);
+            try {
+                for (int attempt = 1; ; attempt++) {
+                    try (PreparedStatement deleteStmt = con.prepareStatement(deleteFromCustBookQuery);
+                         PreparedStatement updateStmt = con.prepareStatement(updateBookQuery)) {
+                        for (int i : order) {
+                            deleteStmt.setInt(1, customerIDs[i]);
+                            deleteStmt.setInt(2, isbns[i]);
+                            deleteStmt.addBatch();
+                        }
+                        int[] sortedDeleted = deleteStmt.executeBatch();
+                        boolean[] deleted = new boolean[pending];
+                        for (int k = 0; k < pending; k++) {
+                            deleted[order[k]] = sortedDeleted[k] > 0;
+                        }
+
+                        TreeMap<Integer, Integer> copiesBack = new TreeMap<>();
+                        for (int i = 0; i < pending; i++) {
+                            if (deleted[i]) {
+                                copiesBack.merge(isbns[i], 1, Integer::sum);
+                            }
+                        }
+                        for (Map.Entry<Integer, Integer> entry : copiesBack.entrySet()) {
+                            updateStmt.setInt(1, entry.getValue());
+                            updateStmt.setInt(2, entry.getKey());
+                            if (striped) {
+                                updateStmt.setInt(3, entry.getKey());
+                            }
+                            updateStmt.addBatch();
+                        }
+                        if (!copiesBack.isEmpty()) {
+                            int[] updated = updateStmt.executeBatch();
+                            if (striped) {
+                                putBackInStripes(con, updateStripesQuery, copiesBack, updated);
+                            }
+                        }
+                        con.commit();
+
+                        for (int i = 0; i < pending; i++) {
+                            lines.append("    Book: ").append(isbns[i]);
+                            if (deleted[i]) {
+                                loanChanged(isbns[i], customerIDs[i]);
+                                lines.append(" - Returned by: ").append(customerIDs[i]).append("\n");
+                                returned++;
+                            } else {
+                                lines.append(" - Not returned by: ").append(customerIDs[i])
+                                        .append(": No entry found in Cust_Book for the given customer and book.\n");
+                            }
+                        }
+                        break;
+                    } catch (SQLException e) {
+                        con.rollback();
+                        if (attempt < attempts && isRetryable(e)) {
+                            backOff(attempt);
+                            continue;
+                        }
+                        for (int i = 0; i < pending; i++) {
+                            lines.append("    Book: ").append(isbns[i]).append(" - Not returned by: ").append(customerIDs[i])
+                                    .append(": ").append(e.getMessage()).append("\n");
+                        }
+                        break;
+                    }
+                }
+            } finally {
+                con.setAutoCommit(true);
+            }
+
+            rows += pending;
+            chunks++;
+            pending = 0;
+        }
+
+        // The books whose row the update batch skipped have stripes: their copies go there
+        private void putBackInStripes(PooledConnection con, String updateStripesQuery,
+                                      TreeMap<Integer, Integer> copiesBack, int[] updated) throws SQLException {
+            try (PreparedStatement stripesStmt = con.prepareStatement(updateStripesQuery)) {
+                int k = 0;
+                boolean any = false;
+                for (Map.Entry<Integer, Integer> entry : copiesBack.entrySet()) {
+                    if (updated[k++] == 0) {
+                        stripesStmt.setInt(1, entry.getValue());
+                        stripesStmt.setInt(2, entry.getValue());
+                        stripesStmt.setInt(3, entry.getKey());
+                        stripesStmt.setInt(4, entry.getKey());
+                        stripesStmt.addBatch();
+                        any = true;
+                    }
+                }
+                if (any) {
+                    stripesStmt.executeBatch();
+                }
+            }
+        }
+
+        String report() {
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return "Return Books:\n" + lines +
+                    String.format("    %d of %d returned in %d chunk(s), %.2f s (%.0f rows/s)",
+                            returned, rows, chunks, seconds, seconds > 0 ? rows / seconds : 0.0);
+        }
+    }
+
+
+    /**
+     * Exports books, loans or customers to a file, as JSON Lines if its name ends in .json or
+     * .jsonl and as CSV otherwise. Reads through a cursor of library.export.fetchSize rows, so
+     * memory use does not depend on table size.
+     *
+     * @param dataset
+     * @param file - replaced if it exists
+     * @return result - rows written and throughput
+     */
+    public String exportData(CatalogueExporter.Dataset dataset, File file) {
+        return metrics.time("exportData", () -> exportDataImpl(dataset, file));
+    }
+
+    private String exportDataImpl(CatalogueExporter.Dataset dataset, File file) {
+        CatalogueExporter exporter = new CatalogueExporter(pool,
+                Integer.getInteger("library.export.fetchSize", 1000),
+                Integer.getInteger("library.export.bufferBytes", 65536), striped);
+        CatalogueExporter.Format format = CatalogueExporter.Format.forFile(file.toPath());
+        long start = System.nanoTime();
+        try {
+            long rows = exporter.export(dataset, format, file.toPath());
+            double seconds = (System.nanoTime() - start) / 1e9;
+            return String.format("Export:\n    %d rows of %s written to %s as %s (%.0f rows/s)",
+                    rows, dataset, file, format, rows / Math.max(seconds, 1e-9));
+        } catch (SQLException | IOException e) {
+            return "Error exporting " + dataset + ": " + e.getMessage();
+        }
+    }
+
+
+    /**
+     * Loads a CSV file into a table with COPY, updating rows whose key already exists. The
+     * file is streamed, so it can have millions of rows.
+     *
+     * @param table
+     * @param file - header line, then the columns listed by table.getColumns()
+     * @return result - rows read and merged, and the throughput
+     */
+    public String importData(LibraryImporter.Table table, File file) {
+        return metrics.time("importData", () -> importDataImpl(table, file));
+    }
+
+    private String importDataImpl(LibraryImporter.Table table, File file) {
+        try (PooledConnection con = pool.acquire()) {
+            return new LibraryImporter().importFile(con.connection(), table, file.toPath());
+        } catch (SQLException | IOException e) {
+            return "Error importing " + file + " into " + table + ": " + e.getMessage();
+        } finally {
+            // Imported rows may replace anything that is cached
+            snapshotChanged();
+            replicaChanged();
+            searchIndex.invalidateAll();
+            bookCache.invalidateAll();
+            authorCache.invalidateAll();
+            customerCache.invalidateAll();
+        }
+    }
+
+
+    /**
+     * Closes every pooled connection, called on exit
+     */
     public void closeDBConnection() {
-        //this.closeDBConnection();
-        //System.exit(0);
+        if (changeListener != null) {
+            changeListener.close();
+        }
+        if (snapshotRefresher != null) {
+            snapshotRefresher.shutdownNow();
+        }
+        if (replicaSync != null) {
+            replicaSync.close();
+        }
+        synchronized (this) {
+            if (groupCommitter != null) {
+                groupCommitter.close();
+            }
+        }
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+
+    /**
+     * @return statement cache, connection pool and group commit statistics
+     */
+    public String getConnectionStats() {
+        String stats = pool.getStatementCacheStats() + "\n" + pool.getStatus();
+        synchronized (this) {
+            if (groupCommitter != null) {
+                stats += "\n" + groupCommitter.getStats();
+            }
+        }
+        return stats;
+    }
+
+
+    /**
+     * @return latency, call, error, row and output metrics of every operation called so far
+     */
+    public LibraryMetrics getMetrics() {
+        return metrics;
+    }
+
+
+    /**
+     * @return hit rate and eviction statistics of the book, author and customer caches
+     */
+    public String getCacheStats() {
+        return bookCache.getStats() + "\n" + authorCache.getStats() + "\n" + customerCache.getStats();
+    }
+
+
+    // A loan of this book by this customer was made or returned, so cached copies left and loans are stale
+    private void loanChanged(int isbn, int customerID) {
+        replicaChanged();
+        bookCache.invalidate(isbn);
+        customerCache.invalidate(customerID);
+    }
+
+    /**
+     * Turns change notifications from other clients into cache invalidations
+     */
+    private class CacheInvalidator implements ChangeListener.Handler {
+        @Override
+        public void changed(String table, int[] keys) {
+            switch (table) {
+                case "book":
+                    // Titles show up in author and customer results too
+                    snapshotChanged();
+                    searchIndex.bookChanged(keys[0]);
+                    bookCache.invalidate(keys[0]);
+                    authorCache.invalidateReferencing(keys[0]);
+                    customerCache.invalidateReferencing(keys[0]);
+                    break;
+                case "author":
+                    snapshotChanged();
+                    searchIndex.authorChanged(keys[0]);
+                    authorCache.invalidate(keys[0]);
+                    bookCache.invalidateReferencing(keys[0]);
+                    break;
+                case "customer":
+                    customerCache.invalidate(keys[0]);
+                    break;
+                case "cust_book":
+                    loanChanged(keys[0], keys[1]);
+                    break;
+                case "book_author":
+                    snapshotChanged();
+                    searchIndex.bookChanged(keys[0]);
+                    bookCache.invalidate(keys[0]);
+                    authorCache.invalidate(keys[1]);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void tableChanged(String table) {
+            switch (table) {
+                case "book":
+                    snapshotChanged();
+                    missedChanges();
+                    break;
+                case "author":
+                case "book_author":
+                    snapshotChanged();
+                    searchIndex.invalidateAll();
+                    bookCache.invalidateAll();
+                    authorCache.invalidateAll();
+                    break;
+                case "customer":
+                    customerCache.invalidateAll();
+                    break;
+                case "cust_book":
+                    bookCache.invalidateAll();
+                    customerCache.invalidateAll();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void missedChanges() {
+            // The snapshot's revision marker tells whether it missed anything
+            if (snapshotRefresher != null) {
+                scheduleSnapshotRefresh(0);
+            }
+            searchIndex.invalidateAll();
+            bookCache.invalidateAll();
+            authorCache.invalidateAll();
+            customerCache.invalidateAll();
+        }
+    }
+
+    // A report written straight to an Appendable
+    private interface Write {
+        void run() throws SQLException, IOException;
+    }
+
+    // Times a write* operation like every other one. The report is streamed rather than returned,
+    // so only failures, time and rows read are recorded, not its size.
+    private void timeWrite(String name, Write write) throws SQLException, IOException {
+        Exception[] failure = new Exception[1];
+        metrics.time(name, () -> {
+            try {
+                write.run();
+                return "";
+            } catch (SQLException | IOException e) {
+                failure[0] = e;
+                return "Error: " + e.getMessage();
+            }
+        });
+        if (failure[0] instanceof SQLException) {
+            throw (SQLException) failure[0];
+        } else if (failure[0] instanceof IOException) {
+            throw (IOException) failure[0];
+        }
+    }
+
+    private static int[] toIntArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+
+    /**
+     * Shows a message dialog and waits for it to be dismissed. Operations are called from
+     * background threads by the UI, so the dialog is handed to the Swing event thread.
+     *
+     * @param message
+     */
+    private void showMessageAndWait(String message) {
+        if (!interactive) {
+            return;
+        }
+        onEventThread(() -> JOptionPane.showMessageDialog(dialogParent, message));
+    }
+
+    // Runs a dialog on the Swing event thread and waits for it to be dismissed
+    private static void onEventThread(Runnable dialog) {
+        if (SwingUtilities.isEventDispatchThread()) {
+            dialog.run();
+            return;
+        }
+        try {
+            SwingUtilities.invokeAndWait(dialog);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        }
     }
 
 
@@ -592,9 +2471,10 @@ public class LibraryModel {
      * Gives the option to exit out application if you press OK
      */
     public void exitProgram() {
-        int result = JOptionPane.showOptionDialog(dialogParent, "Click 'Ok' to exit.", "Exit Application", JOptionPane.OK_CANCEL_OPTION, JOptionPane.INFORMATION_MESSAGE, null, null, null);
+        int[] result = new int[1];
+        onEventThread(() -> result[0] = JOptionPane.showOptionDialog(dialogParent, "Click 'Ok' to exit.", "Exit Application", JOptionPane.OK_CANCEL_OPTION, JOptionPane.INFORMATION_MESSAGE, null, null, null));
 
-        if (result == JOptionPane.OK_OPTION) {
+        if (result[0] == JOptionPane.OK_OPTION) {
             this.closeDBConnection();
             System.exit(0);
         }
@@ -608,14 +2488,21 @@ public class LibraryModel {
      * @return result
      */
     public String deleteCus(int customerID) {
+        return metrics.time("deleteCus", () -> deleteCusImpl(customerID));
+    }
+
+    private String deleteCusImpl(int customerID) {
         String result = "";
         String query = "DELETE FROM customer WHERE customerid = ?";
 
-        try (PreparedStatement stmt = con.prepareStatement(query)) {
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(query)) {
             stmt.setInt(1, customerID);
             int rowsDeleted = stmt.executeUpdate();
 
             if (rowsDeleted > 0) {
+                replicaChanged();
+                customerCache.invalidate(customerID);
                 result = "Customer: " + customerID + " removed";
             } else {
                 result = "No customer found with ID: " + customerID;
@@ -635,14 +2522,24 @@ public class LibraryModel {
      * @return result
      */
     public String deleteAuthor(int authorID) {
+        return metrics.time("deleteAuthor", () -> deleteAuthorImpl(authorID));
+    }
+
+    private String deleteAuthorImpl(int authorID) {
         String result = "";
         String query = "DELETE FROM author WHERE authorid = ?";
 
-        try (PreparedStatement stmt = con.prepareStatement(query)) {
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(query)) {
             stmt.setInt(1, authorID);
             int rowsDeleted = stmt.executeUpdate();
 
             if (rowsDeleted > 0) {
+                snapshotChanged();
+                replicaChanged();
+                searchIndex.authorChanged(authorID);
+                authorCache.invalidate(authorID);
+                bookCache.invalidateReferencing(authorID);
                 result = "Author: " + authorID + " removed";
             } else {
                 result = "No Author found with ID: " + authorID;
@@ -662,14 +2559,25 @@ public class LibraryModel {
      * @return result
      */
     public String deleteBook(int isbn) {
+        return metrics.time("deleteBook", () -> deleteBookImpl(isbn));
+    }
+
+    private String deleteBookImpl(int isbn) {
         String result = "";
         String query = "DELETE FROM book WHERE isbn = ?";
 
-        try (PreparedStatement stmt = con.prepareStatement(query)) {
+        try (PooledConnection con = pool.acquire();
+             PreparedStatement stmt = con.prepareStatement(query)) {
             stmt.setInt(1, isbn);
             int rowsDeleted = stmt.executeUpdate();
 
             if (rowsDeleted > 0) {
+                snapshotChanged();
+                replicaChanged();
+                searchIndex.bookChanged(isbn);
+                bookCache.invalidate(isbn);
+                authorCache.invalidateReferencing(isbn);
+                customerCache.invalidateReferencing(isbn);
                 result = "Book: " + isbn + " removed";
             } else {
                 result = "No Book found with isbn: " + isbn;
@@ -13,6 +13,7 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import javax.swing.*;
 import javax.swing.border.Border;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.text.Document;
 import javax.swing.text.BadLocationException;
 
@@ -27,9 +28,20 @@ import static javax.swing.JOptionPane.showMessageDialog;
 import static javax.swing.JScrollPane.VERTICAL_SCROLLBAR_ALWAYS;
 import static javax.swing.KeyStroke.getKeyStroke;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.sql.*;
 
 import static java.util.Calendar.DAY_OF_MONTH;
@@ -41,10 +53,37 @@ public class LibraryUI extends JFrame {
     private Action exitAction;
     private Action clearTextAction;
     private Action borrowAction;
+    private Action borrowManyAction;
     private Action returnAction;
+    private Action returnFileAction;
+    private Action exportAction;
+    private Action importAction;
+    private Action moreCatalogueAction;
 
-    // The main output area
+    // The main output area, capped so long sessions do not grow without bound
     private JTextArea outputArea;
+    private BoundedDocument outputDocument;
+
+    // Output waiting for the next flush, so a burst of results costs one
+    // document update per frame. Only touched on the event thread.
+    private final StringBuilder pendingOutput = new StringBuilder();
+    private Timer outputTimer;
+
+    // Status bar showing model calls still running in the background
+    private JLabel statusLabel;
+    private JProgressBar progressBar;
+    private int runningTasks = 0;
+
+    // Runs model calls off the Swing event thread. Bounded, so a clerk
+    // hammering a button gets an error instead of an ever growing queue.
+    private final ThreadPoolExecutor modelExecutor = createModelExecutor();
+
+    // Book search field
+    private JTextField searchField;
+
+    // Type-ahead for the ISBN and customer ID fields, loaded in the background
+    private final List<AutoCompleter> bookCompleters = new ArrayList<AutoCompleter>();
+    private final List<AutoCompleter> customerCompleters = new ArrayList<AutoCompleter>();
 
     // Return fields
     private JTextField retISBN;
@@ -59,11 +98,21 @@ public class LibraryUI extends JFrame {
 
     // Buttons and tabbed pane - keep them for focus order
     private JButton returnButton;
+    private JButton returnFileButton;
     private JButton borrowButton;
+    private JButton borrowManyButton;
     private JTabbedPane tabbedPane;
 
-    // The data model
-    private LibraryModel model;
+    // The data model, set once connected in the background. Model calls
+    // wait on modelReady, so actions taken while connecting run once it is.
+    private volatile LibraryModel model;
+    private final CompletableFuture<LibraryModel> modelReady =
+	new CompletableFuture<LibraryModel>();
+
+    // Last catalogue page shown, the next page carries on from it
+    private CataloguePage cataloguePage;
+    private final int cataloguePageSize =
+	Integer.getInteger("library.catalogue.pageSize", 200);
 
     // A parent for modal dialogs
     private JFrame dialogParent = this;
@@ -83,14 +132,19 @@ public class LibraryUI extends JFrame {
 	initFocusTraversalPolicy();
         setSize(600, 600);
 
+	// Load the driver while the user is typing
+	Thread preload = new Thread(LibraryModel::preload, "library-preload");
+	preload.setDaemon(true);
+	preload.start();
+
 	// Show Authentication dialog
 	AuthDialog ad = new AuthDialog(this, "Authentication");
 	ad.setVisible(true);
 	String userName = ad.getUserName();
 	String password = ad.getDatabasePassword();
 
-	// Create data model
-        model = new LibraryModel(this, userName, password);
+	// Create data model, without holding up the window
+	connect(userName, password);
 
 	// Center window on screen
 	GraphicsEnvironment ge =
@@ -103,11 +157,52 @@ public class LibraryUI extends JFrame {
         setVisible(true);
     }
 
+    /**
+     * Build the model on a background thread, then load the completions
+     * and warm up the model's statements and caches, shown in the status bar.
+     */
+    private void connect(final String userName, final String password) {
+	taskStarted("Connecting");
+	Thread connector = new Thread(() -> {
+		LibraryModel connected;
+		try {
+		    connected = new LibraryModel(this, userName, password);
+		} catch (RuntimeException e) {
+		    modelReady.completeExceptionally(e);
+		    SwingUtilities.invokeLater(() -> {
+			    taskFinished();
+			    showExceptionDialog(e);
+			});
+		    return;
+		}
+		model = connected;
+		modelReady.complete(connected);
+		SwingUtilities.invokeLater(() -> {
+			taskFinished();
+			loadCompletions();
+			taskStarted("Warming up");
+		    });
+		try {
+		    connected.warmUp();
+		} finally {
+		    SwingUtilities.invokeLater(this::taskFinished);
+		}
+	    }, "library-connect");
+	connector.setDaemon(true);
+	connector.start();
+    }
+
     private void initActions() {
 	exitAction = new ExitAction();
 	clearTextAction = new ClearTextAction();
 	borrowAction = new BorrowAction();
+	borrowManyAction = new BorrowManyAction();
 	returnAction = new ReturnAction();
+	returnFileAction = new ReturnFileAction();
+	exportAction = new ExportAction();
+	importAction = new ImportAction();
+	moreCatalogueAction = new MoreCatalogueAction();
+	moreCatalogueAction.setEnabled(false);
 
         addWindowListener(new WindowAdapter() {
             public void windowClosing(WindowEvent evt) {
@@ -131,9 +226,23 @@ public class LibraryUI extends JFrame {
 			  "Borrow books for a customer");
         tabbedPane.addTab("Return Book", null, createReturnPane(),
 			  "Return books for a customer");
+        tabbedPane.addTab("Statistics", null, createStatisticsPane(),
+			  "Latency and throughput of database operations");
+
+	// Pick up new books and customers when coming back to the loan tabs
+	tabbedPane.addChangeListener(new javax.swing.event.ChangeListener() {
+		public void stateChanged(javax.swing.event.ChangeEvent e) {
+		    String title = tabbedPane.getTitleAt(tabbedPane.getSelectedIndex());
+		    if (title.equals("Borrow Book") || title.equals("Return Book"))
+			refreshCompletions();
+		}
+	    });
 
 	// Create output area with scrollpane
-        outputArea = new JTextArea();
+        outputDocument = new BoundedDocument(
+	    Integer.getInteger("library.ui.outputMaxChars", 2000000),
+	    Integer.getInteger("library.ui.outputMaxLines", 20000));
+        outputArea = new JTextArea(outputDocument);
 	outputArea.setEditable(false);
 	outputArea.setFocusable(false);
 	outputArea.setTabSize(2);
@@ -142,19 +251,56 @@ public class LibraryUI extends JFrame {
 
 	getContentPane().add(sp, BorderLayout.CENTER);
 
+	outputTimer = new Timer(16, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    flushOutput();
+		}
+	    });
+	outputTimer.setRepeats(false);
+
+	// Create status bar for background work
+	statusLabel = new JLabel("Ready");
+	progressBar = new JProgressBar();
+	progressBar.setIndeterminate(true);
+	progressBar.setVisible(false);
+	Box statusBar = new Box(X_AXIS);
+	statusBar.setBorder(BorderFactory.createEmptyBorder(2, 5, 2, 5));
+	statusBar.add(statusLabel);
+	statusBar.add(Box.createHorizontalGlue());
+	statusBar.add(progressBar);
+	getContentPane().add(statusBar, BorderLayout.SOUTH);
+
 	// Create menus
         JMenu fileMenu = new JMenu("File");
 	fileMenu.setMnemonic('F');
 
+	JMenuItem importMenuItem = new JMenuItem(importAction);
+	JMenuItem exportMenuItem = new JMenuItem(exportAction);
 	JMenuItem clearTextMenuItem = new JMenuItem(clearTextAction);
 	JMenuItem exitMenuItem = new JMenuItem(exitAction);
 
+        fileMenu.add(importMenuItem);
+        fileMenu.add(exportMenuItem);
         fileMenu.add(clearTextMenuItem);
 	fileMenu.addSeparator();
         fileMenu.add(exitMenuItem);
 
+	// Loan mode can be switched at runtime to compare locking strategies
+	JMenu optionsMenu = new JMenu("Options");
+	optionsMenu.setMnemonic('O');
+	JMenu loanModeMenu = new JMenu("Loan Mode");
+	ButtonGroup loanModeGroup = new ButtonGroup();
+	for (LoanMode mode : LoanMode.values()) {
+	    JRadioButtonMenuItem item = new JRadioButtonMenuItem(new LoanModeAction(mode));
+	    item.setSelected(mode == LoanMode.defaultMode());
+	    loanModeGroup.add(item);
+	    loanModeMenu.add(item);
+	}
+	optionsMenu.add(loanModeMenu);
+
         JMenuBar menuBar = new JMenuBar();
         menuBar.add(fileMenu);
+        menuBar.add(optionsMenu);
         setJMenuBar(menuBar);
 
 	// Pack it all
@@ -174,24 +320,28 @@ public class LibraryUI extends JFrame {
 	    new MapFocusTraversalPolicy(defaultPolicy, tabbedPane);
 	mine.putAfter(retISBN, retCustID);
 	mine.putAfter(retCustID, returnButton);
-	mine.putAfter(returnButton, tabbedPane);
+	mine.putAfter(returnButton, returnFileButton);
+	mine.putAfter(returnFileButton, tabbedPane);
 	mine.putAfter(borISBN, borCustID);
 	mine.putAfter(borCustID, borDay);
 	mine.putAfter(borDay, borMonth);
 	mine.putAfter(borMonth, borYear);
 	mine.putAfter(borYear, borrowButton);
-	mine.putAfter(borrowButton, tabbedPane);
+	mine.putAfter(borrowButton, borrowManyButton);
+	mine.putAfter(borrowManyButton, tabbedPane);
 
 	mine.putBefore(retCustID, retISBN);
 	mine.putBefore(returnButton, retCustID);
+	mine.putBefore(returnFileButton, returnButton);
 	mine.putBefore(borCustID, borISBN);
 	mine.putBefore(borDay, borCustID);
 	mine.putBefore(borMonth, borDay);
 	mine.putBefore(borYear, borMonth);
 	mine.putBefore(borrowButton, borYear);
+	mine.putBefore(borrowManyButton, borrowButton);
 
-	mine.putTabBefore("Borrow Book", borrowButton);
-	mine.putTabBefore("Return Book", returnButton);
+	mine.putTabBefore("Borrow Book", borrowManyButton);
+	mine.putTabBefore("Return Book", returnFileButton);
 
 	nearestRoot.setFocusTraversalPolicy(mine);
     }
@@ -200,16 +350,31 @@ public class LibraryUI extends JFrame {
 	// Create buttons
         JButton bookLookup = new JButton(new BookLookupAction());
         JButton showCat = new JButton(new ShowCatalogueAction());
+        JButton moreCat = new JButton(moreCatalogueAction);
         JButton showLoanedBook = new JButton(new ShowLoanedBooksAction());
         JButton deleteBook = new JButton(new DeleteBookAction());
 
+	// Search box, Enter searches too
+	Action searchAction = new SearchBooksAction();
+	searchField = new JTextField(15);
+	searchField.setMaximumSize(searchField.getPreferredSize());
+	searchField.setToolTipText("Words from the title or author names");
+	searchField.addActionListener(searchAction);
+	JButton search = new JButton(searchAction);
+
 	// Create panel
 	Box pane = new Box(X_AXIS);
 	pane.add(Box.createHorizontalGlue());
+        pane.add(searchField);
+	pane.add(Box.createHorizontalStrut(5));
+        pane.add(search);
+	pane.add(Box.createHorizontalStrut(10));
         pane.add(bookLookup);
 	pane.add(Box.createHorizontalStrut(5));
         pane.add(showCat);
 	pane.add(Box.createHorizontalStrut(5));
+        pane.add(moreCat);
+	pane.add(Box.createHorizontalStrut(5));
         pane.add(showLoanedBook);
     	pane.add(Box.createHorizontalStrut(5));
         pane.add(deleteBook);
@@ -273,12 +438,15 @@ public class LibraryUI extends JFrame {
 	borMonth.setSelectedIndex(today.get(MONTH));
 	borYear.setSelectedIndex(today.get(YEAR) - 2005);
 
-	// Create borrow button
+	// Create borrow buttons
         borrowButton = new JButton(borrowAction);
+        borrowManyButton = new JButton(borrowManyAction);
 
 	// Create text fields
 	borISBN = new JTextField(15);
 	borCustID = new JTextField(15);
+	bookCompleters.add(new AutoCompleter(borISBN));
+	customerCompleters.add(new AutoCompleter(borCustID));
 
 	// Create panel and layout
 	JPanel pane = new JPanel();
@@ -305,6 +473,7 @@ public class LibraryUI extends JFrame {
 	addToGridBag(gb, c, pane, borYear,  3, 2, 1, 1);
 
 	addToGridBag(gb, c, pane, borrowButton, 4, 0, 1, 3);
+	addToGridBag(gb, c, pane, borrowManyButton, 5, 0, 1, 3);
 
 	// Set up VK_ENTER triggering the borrow button in this panel
 	InputMap input = pane.getInputMap(WHEN_ANCESTOR_OF_FOCUSED_COMPONENT);
@@ -315,12 +484,15 @@ public class LibraryUI extends JFrame {
     }
 
     private Container createReturnPane() {
-	// Create return button
+	// Create return buttons
         returnButton = new JButton(returnAction);
+        returnFileButton = new JButton(returnFileAction);
 
 	// Create text fields
 	retISBN = new JTextField(15);
 	retCustID = new JTextField(15);
+	bookCompleters.add(new AutoCompleter(retISBN));
+	customerCompleters.add(new AutoCompleter(retCustID));
 
 	// Create panel and layout
 	JPanel pane = new JPanel();
@@ -342,6 +514,7 @@ public class LibraryUI extends JFrame {
 
 	c.fill = GridBagConstraints.NONE;
 	addToGridBag(gb, c, pane, returnButton, 4, 0, 1, 3);
+	addToGridBag(gb, c, pane, returnFileButton, 5, 0, 1, 3);
 
 	// Set up VK_ENTER triggering the return button in this panel
 	InputMap input = pane.getInputMap(WHEN_ANCESTOR_OF_FOCUSED_COMPONENT);
@@ -351,6 +524,91 @@ public class LibraryUI extends JFrame {
 	return pane;
     }
 
+    private Container createStatisticsPane() {
+	final StatisticsTableModel tableModel = new StatisticsTableModel();
+	JTable table = new JTable(tableModel);
+	table.setFocusable(false);
+	JScrollPane tableScroll = new JScrollPane(table);
+	tableScroll.setPreferredSize(new Dimension(560, 110));
+
+	final JTextArea cacheStats = new JTextArea(2, 40);
+	cacheStats.setEditable(false);
+	cacheStats.setFocusable(false);
+	cacheStats.setOpaque(false);
+	cacheStats.setFont(cacheStats.getFont().deriveFont(10f));
+
+	JButton reset = new JButton(new AbstractAction("Reset") {
+		public void actionPerformed(ActionEvent e) {
+		    if (model != null)
+			model.getMetrics().reset();
+		    tableModel.refresh();
+		}
+	    });
+
+	JPanel pane = new JPanel(new BorderLayout());
+	pane.setOpaque(false);
+	pane.add(tableScroll, BorderLayout.CENTER);
+	Box south = new Box(X_AXIS);
+	south.add(cacheStats);
+	south.add(Box.createHorizontalStrut(5));
+	south.add(reset);
+	pane.add(south, BorderLayout.SOUTH);
+
+	// Refresh once a second while the tab is showing
+	new Timer(1000, new ActionListener() {
+		public void actionPerformed(ActionEvent e) {
+		    if (model == null || !pane.isShowing())
+			return;
+		    tableModel.refresh();
+		    cacheStats.setText(model.getCacheStats() + "\n" +
+				       model.getConnectionStats());
+		}
+	    }).start();
+
+	return pane;
+    }
+
+    /**
+     * One row per model operation: calls, errors, latency percentiles,
+     * rows read and output produced.
+     */
+    private class StatisticsTableModel extends AbstractTableModel {
+	private final String[] columns = { "Operation", "Calls", "Errors",
+					   "p50 ms", "p99 ms", "p99.9 ms", "Max ms",
+					   "Rows", "Output KB" };
+	private List<OperationMetrics> rows =
+	    new ArrayList<OperationMetrics>();
+
+	void refresh() {
+	    rows = model == null ? new ArrayList<OperationMetrics>()
+		: model.getMetrics().getOperations();
+	    fireTableDataChanged();
+	}
+	public int getRowCount() {
+	    return rows.size();
+	}
+	public int getColumnCount() {
+	    return columns.length;
+	}
+	public String getColumnName(int column) {
+	    return columns[column];
+	}
+	public Object getValueAt(int row, int column) {
+	    OperationMetrics m = rows.get(row);
+	    switch (column) {
+	    case 0: return m.getName();
+	    case 1: return m.getCalls();
+	    case 2: return m.getErrors();
+	    case 3: return String.format("%.2f", m.getP50Millis());
+	    case 4: return String.format("%.2f", m.getP99Millis());
+	    case 5: return String.format("%.2f", m.getP999Millis());
+	    case 6: return String.format("%.2f", m.getMaxMillis());
+	    case 7: return m.getRowsRead();
+	    default: return m.getOutputBytes() / 1024;
+	    }
+	}
+    }
+
     private void addToGridBag(GridBagLayout gb, GridBagConstraints c,
 			      Container cont, JComponent item,
 			      int x, int y, int w, int h) {
@@ -380,6 +638,7 @@ public class LibraryUI extends JFrame {
 	    putValue(ACCELERATOR_KEY, getKeyStroke("ctrl T"));
 	}
 	public void actionPerformed(ActionEvent evt) {
+	    pendingOutput.setLength(0);
 	    Document document = outputArea.getDocument();
 	    try {
 		document.remove(0, document.getLength());
@@ -388,6 +647,17 @@ public class LibraryUI extends JFrame {
 	}
     }
 
+    private class LoanModeAction extends AbstractAction {
+	private final LoanMode mode;
+	public LoanModeAction(LoanMode mode) {
+	    super(mode.getLabel());
+	    this.mode = mode;
+	}
+	public void actionPerformed(ActionEvent evt) {
+	    modelReady.thenAccept(m -> m.setLoanMode(mode));
+	}
+    }
+
     /**
      * An Action that catches any exception thrown in the doAction method.
      */
@@ -402,6 +672,11 @@ public class LibraryUI extends JFrame {
 	}
 	/** Subclasses implement this for their behaviour */
 	protected abstract void doAction();
+
+	/** Runs a model call in the background, labelled with this action's name */
+	protected void runModelCall(Callable<String> call) {
+	    runInBackground((String)getValue(NAME), call);
+	}
     }
 
     private class ReturnAction extends CatchAction {
@@ -412,7 +687,7 @@ public class LibraryUI extends JFrame {
 	    try {
 		int isbn = Integer.parseInt(retISBN.getText());
 		int cusID = Integer.parseInt(retCustID.getText());
-		appendOutput(model.returnBook(isbn, cusID));
+		runModelCall(() -> model.returnBook(isbn, cusID));
 	    } catch ( NumberFormatException nfe ) {
 		showMessageDialog(dialogParent, "The values entered for ISBN or customer ID do not have number format. Please try again.",
 				  "Format Error", ERROR_MESSAGE);
@@ -420,6 +695,75 @@ public class LibraryUI extends JFrame {
 	}
     }
 
+    /**
+     * Return every "isbn,customerid" pair listed in a file, e.g. a scan of
+     * the returns drop-box.
+     */
+    private class ReturnFileAction extends CatchAction {
+	public ReturnFileAction() {
+	    super("Return From File...");
+	    putValue(SHORT_DESCRIPTION, "Return the isbn,customerid pairs listed in a file");
+	}
+	public void doAction() {
+	    JFileChooser chooser = new JFileChooser();
+	    chooser.setDialogTitle("Returns File");
+	    if (chooser.showOpenDialog(dialogParent) != JFileChooser.APPROVE_OPTION)
+		return;
+	    File file = chooser.getSelectedFile();
+	    runModelCall(() -> model.returnBooksFromFile(file));
+	}
+    }
+
+    /**
+     * Export books, loans or customers to a CSV file, or JSON Lines when
+     * the file name ends in .json or .jsonl.
+     */
+    private class ExportAction extends CatchAction {
+	public ExportAction() {
+	    super("Export...");
+	    putValue(SHORT_DESCRIPTION, "Export books, loans or customers as CSV or JSON Lines");
+	}
+	public void doAction() {
+	    CatalogueExporter.Dataset dataset = (CatalogueExporter.Dataset)showInputDialog(
+		dialogParent, "What to export:", "Export",
+		QUESTION_MESSAGE, null, CatalogueExporter.Dataset.values(),
+		CatalogueExporter.Dataset.BOOKS);
+	    if (dataset == null)
+		return;
+	    JFileChooser chooser = new JFileChooser();
+	    chooser.setDialogTitle("Export " + dataset + " (.csv or .jsonl)");
+	    if (chooser.showSaveDialog(dialogParent) != JFileChooser.APPROVE_OPTION)
+		return;
+	    File file = chooser.getSelectedFile();
+	    runModelCall(() -> model.exportData(dataset, file));
+	}
+    }
+
+    /**
+     * Load a CSV file of books, authors, book authors or customers, e.g. a
+     * batch of new acquisitions.
+     */
+    private class ImportAction extends CatchAction {
+	public ImportAction() {
+	    super("Import...");
+	    putValue(SHORT_DESCRIPTION, "Load books, authors, book authors or customers from a CSV file");
+	}
+	public void doAction() {
+	    LibraryImporter.Table table = (LibraryImporter.Table)showInputDialog(
+		dialogParent, "Table to import into:", "Import",
+		QUESTION_MESSAGE, null, LibraryImporter.Table.values(),
+		LibraryImporter.Table.BOOK);
+	    if (table == null)
+		return;
+	    JFileChooser chooser = new JFileChooser();
+	    chooser.setDialogTitle("Import " + table + " (CSV: " + table.getColumns() + ")");
+	    if (chooser.showOpenDialog(dialogParent) != JFileChooser.APPROVE_OPTION)
+		return;
+	    File file = chooser.getSelectedFile();
+	    runModelCall(() -> model.importData(table, file));
+	}
+    }
+
     private class BorrowAction extends CatchAction {
 	public BorrowAction() {
 	    super("Borrow");
@@ -431,7 +775,7 @@ public class LibraryUI extends JFrame {
 		int day = Integer.parseInt((String)borDay.getSelectedItem());
 		int year = Integer.parseInt((String)borYear.getSelectedItem());
 		int month = borMonth.getSelectedIndex();
-		appendOutput(model.borrowBook(isbn, cusID, day, month, year));
+		runModelCall(() -> model.borrowBook(isbn, cusID, day, month, year));
 	    } catch ( NumberFormatException nfe ) {
 		showMessageDialog(dialogParent,
 				  "The values entered for ISBN or customer ID do not have a numeric format. Please try again.",
@@ -440,6 +784,33 @@ public class LibraryUI extends JFrame {
 	}
     }
 
+    /**
+     * Borrow every ISBN in the ISBN field (separated by commas or spaces)
+     * for the customer in one transaction.
+     */
+    private class BorrowManyAction extends CatchAction {
+	public BorrowManyAction() {
+	    super("Borrow Several");
+	    putValue(SHORT_DESCRIPTION, "Borrow a list of ISBNs, separated by commas or spaces");
+	}
+	public void doAction() {
+	    try {
+		List<Integer> isbns = new ArrayList<Integer>();
+		for (String s : borISBN.getText().trim().split("[,\\s]+"))
+		    isbns.add(Integer.parseInt(s));
+		int cusID = Integer.parseInt(borCustID.getText());
+		int day = Integer.parseInt((String)borDay.getSelectedItem());
+		int year = Integer.parseInt((String)borYear.getSelectedItem());
+		int month = borMonth.getSelectedIndex();
+		runModelCall(() -> model.borrowBooks(isbns, cusID, day, month, year));
+	    } catch ( NumberFormatException nfe ) {
+		showMessageDialog(dialogParent,
+				  "The values entered for the ISBNs or customer ID do not have a numeric format. Please try again.",
+				  "Format Error", ERROR_MESSAGE);
+	    }
+	}
+    }
+
     // Convenience method for the LookupAction constructor
     private static boolean isVowel(char c) {
 	switch(Character.toLowerCase(c)) {
@@ -493,7 +864,7 @@ public class LibraryUI extends JFrame {
 	    super("Show Customer", "customer ID");
 	}
 	protected void doLookup(int customerID) {
-	    appendOutput(model.showCustomer(customerID));
+	    runModelCall(() -> model.showCustomer(customerID));
 	}
     }
 
@@ -502,7 +873,7 @@ public class LibraryUI extends JFrame {
 	    super("Show Author", "author ID");
 	}
 	protected void doLookup(int authorID) {
-	    appendOutput(model.showAuthor(authorID));
+	    runModelCall(() -> model.showAuthor(authorID));
 	}
     }
 
@@ -511,7 +882,7 @@ public class LibraryUI extends JFrame {
 	    super("Book Lookup", "ISBN");
 	}
 	protected void doLookup(int isbn) {
-	    appendOutput(model.bookLookup(isbn));
+	    runModelCall(() -> model.bookLookup(isbn));
 	}
     }
 
@@ -520,7 +891,7 @@ public class LibraryUI extends JFrame {
     	    super("Delete Customer", "customer ID");
     	}
     	protected void doLookup(int customerID) {
-    	    appendOutput(model.deleteCus(customerID));
+    	    runModelCall(() -> model.deleteCus(customerID));
     	}
     }
 
@@ -529,7 +900,7 @@ public class LibraryUI extends JFrame {
     	    super("Delete Author", "author ID");
     	}
     	protected void doLookup(int authorID) {
-    	    appendOutput(model.deleteAuthor(authorID));
+    	    runModelCall(() -> model.deleteAuthor(authorID));
     	}
     }
     private class DeleteBookAction extends LookupAction {
@@ -537,7 +908,7 @@ public class LibraryUI extends JFrame {
     	    super("Delete Book", "ISBN");
     	}
     	protected void doLookup(int isbn) {
-    	    appendOutput(model.deleteBook(isbn));
+    	    runModelCall(() -> model.deleteBook(isbn));
     	}
     }
 
@@ -546,7 +917,7 @@ public class LibraryUI extends JFrame {
 	    super("Show All Customers");
 	}
 	protected void doAction() {
-	    appendOutput(model.showAllCustomers());
+	    runModelCall(() -> model.showAllCustomers());
 	}
     }
 
@@ -555,7 +926,23 @@ public class LibraryUI extends JFrame {
 	    super("Show All Authors");
 	}
 	protected void doAction() {
-	    appendOutput(model.showAllAuthors());
+	    runModelCall(() -> model.showAllAuthors());
+	}
+    }
+
+    private class SearchBooksAction extends CatchAction {
+	public SearchBooksAction() {
+	    super("Search");
+	    putValue(SHORT_DESCRIPTION, "Find books by words from the title or author names");
+	}
+	protected void doAction() {
+	    String query = searchField.getText().trim();
+	    if (query.equals("")) {
+		showMessageDialog(dialogParent, "Enter some words from a title or author name to search for.",
+				  "Search", ERROR_MESSAGE);
+		return;
+	    }
+	    runModelCall(() -> model.searchBooks(query));
 	}
     }
 
@@ -564,23 +951,166 @@ public class LibraryUI extends JFrame {
 	    super("Show Catalogue");
 	}
 	protected void doAction() {
-	    appendOutput(model.showCatalogue());
+	    showCataloguePage(null);
+	}
+    }
+
+    private class MoreCatalogueAction extends CatchAction {
+	public MoreCatalogueAction() {
+	    super("More...");
+	    putValue(SHORT_DESCRIPTION, "Show the next page of the catalogue");
+	}
+	protected void doAction() {
+	    showCataloguePage(cataloguePage);
 	}
     }
 
+    /**
+     * Fetch the catalogue page after the given one (or the first page for
+     * null) in the background, and enable More... if there is another.
+     */
+    private void showCataloguePage(final CataloguePage previous) {
+	moreCatalogueAction.setEnabled(false);
+	runInBackground("Show Catalogue", () -> {
+		final CataloguePage page =
+		    model.nextCataloguePage(previous, cataloguePageSize);
+		SwingUtilities.invokeLater(() -> {
+			cataloguePage = page;
+			moreCatalogueAction.setEnabled(page.hasMore());
+		    });
+		if (page.isPossiblyStale()) {
+		    return page.getText() + "\n(From the local copy of the catalogue, still being checked against the database)";
+		}
+		return page.getText();
+	    });
+    }
+
     private class ShowLoanedBooksAction extends CatchAction {
 	public ShowLoanedBooksAction() {
 	    super("Show Loaned Books");
 	}
 	protected void doAction() {
-	    appendOutput(model.showLoanedBooks());
+	    runModelCall(() -> model.showLoanedBooks());
+	}
+    }
+
+    private static ThreadPoolExecutor createModelExecutor() {
+	int threads = Integer.getInteger("library.ui.threads", 4);
+	int queued = Integer.getInteger("library.ui.queue", 32);
+	final AtomicInteger count = new AtomicInteger();
+	ThreadPoolExecutor executor = new ThreadPoolExecutor(
+	    threads, threads, 30, TimeUnit.SECONDS,
+	    new ArrayBlockingQueue<Runnable>(queued),
+	    r -> {
+		Thread t = new Thread(r, "library-model-" + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	    });
+	executor.allowCoreThreadTimeOut(true);
+	return executor;
+    }
+
+    /**
+     * Run a model call on the background executor, showing progress in the
+     * status bar, and append its result to the output area once it is done.
+     * Must be called on the event thread.
+     */
+    private void runInBackground(final String name, final Callable<String> call) {
+	SwingWorker<String,Void> worker = new SwingWorker<String,Void>() {
+		protected String doInBackground() throws Exception {
+		    modelReady.get();
+		    return call.call();
+		}
+		protected void done() {
+		    taskFinished();
+		    try {
+			appendOutput(get());
+		    } catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			showExceptionDialog(cause instanceof Exception ? (Exception)cause : ee);
+		    } catch (InterruptedException ie) {
+			showExceptionDialog(ie);
+		    }
+		}
+	    };
+	// Throws RejectedExecutionException when the queue is full, which
+	// CatchAction reports like any other failure
+	modelExecutor.execute(worker);
+	taskStarted(name);
+    }
+
+    /**
+     * Load the ISBN and customer ID indexes for type-ahead in the
+     * background. Failures only leave the fields without suggestions.
+     */
+    private void loadCompletions() {
+	SwingWorker<IdIndex[],Void> worker = new SwingWorker<IdIndex[],Void>() {
+		protected IdIndex[] doInBackground() throws Exception {
+		    return new IdIndex[] { model.loadIdIndex(IdIndex.Kind.BOOKS),
+					   model.loadIdIndex(IdIndex.Kind.CUSTOMERS) };
+		}
+		protected void done() {
+		    try {
+			IdIndex[] indexes = get();
+			for (AutoCompleter completer : bookCompleters)
+			    completer.setIndex(indexes[0]);
+			for (AutoCompleter completer : customerCompleters)
+			    completer.setIndex(indexes[1]);
+		    } catch (Exception e) {
+			System.err.println("Could not load completions: " + e);
+		    }
+		}
+	    };
+	try {
+	    modelExecutor.execute(worker);
+	} catch (RejectedExecutionException ree) {
+	    // Busy, try again next time a loan tab is shown
 	}
     }
 
+    private void refreshCompletions() {
+	IdIndex current = bookCompleters.get(0).getIndex();
+	long maxAge = Long.getLong("library.ui.completionRefreshMs", 60000);
+	if (model != null && (current == null
+	    || System.currentTimeMillis() - current.getLoadedAt() > maxAge))
+	    loadCompletions();
+    }
+
+    private void taskStarted(String name) {
+	runningTasks++;
+	statusLabel.setText("Running: " + name + (runningTasks > 1 ? " (" + runningTasks + " tasks)" : ""));
+	progressBar.setVisible(true);
+    }
+
+    private void taskFinished() {
+	runningTasks--;
+	if (runningTasks == 0) {
+	    statusLabel.setText("Ready");
+	    progressBar.setVisible(false);
+	} else {
+	    statusLabel.setText("Running: " + runningTasks + " task" + (runningTasks > 1 ? "s" : ""));
+	}
+    }
+
+    /**
+     * Queue text for the output area. Text arriving within one frame is
+     * added in a single update by flushOutput. Must be called on the event
+     * thread.
+     */
     private void appendOutput(String str) {
-	if (str != null && !str.equals(""))
-	    outputArea.append(str + "\n\n");
-	outputArea.setCaretPosition(outputArea.getDocument().getLength());
+	if (str == null || str.equals(""))
+	    return;
+	pendingOutput.append(str).append("\n\n");
+	if (!outputTimer.isRunning())
+	    outputTimer.start();
+    }
+
+    private void flushOutput() {
+	if (pendingOutput.length() == 0)
+	    return;
+	outputDocument.append(pendingOutput.toString());
+	pendingOutput.setLength(0);
+	outputArea.setCaretPosition(outputDocument.getLength());
     }
 
     private void showExceptionDialog(Exception e) {
@@ -592,7 +1122,9 @@ public class LibraryUI extends JFrame {
 
     /** Exit the Application */
     private void doExit() {
-        model.closeDBConnection();
+	modelExecutor.shutdownNow();
+	if (model != null)
+	    model.closeDBConnection();
         System.exit(0);
     }
 
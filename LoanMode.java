@@ -0,0 +1,45 @@
+/*
+ * LoanMode.java
+ */
+
+/**
+ * How LibraryModel.borrowBook and returnBook make their changes. Can be switched at runtime to
+ * compare throughput under contention.
+ */
+public enum LoanMode {
+
+    /** Lock the customer and book rows with SELECT ... FOR UPDATE, confirm with a dialog, then update */
+    LOCKING("Locking"),
+
+    /** Short transaction with a conditional UPDATE ... WHERE NumLeft > 0, no dialog, retried on conflicts */
+    OPTIMISTIC("Optimistic"),
+
+    /** One data-modifying CTE with RETURNING per borrow or return, a single round trip */
+    SINGLE_STATEMENT("Single statement"),
+
+    /** Concurrent borrows and returns share one transaction per short window, each under its own savepoint */
+    GROUP_COMMIT("Group commit"),
+
+    /** Like OPTIMISTIC, but takes copies from any unlocked stripe of library_stripes.sql, so borrows of one title do not queue */
+    STRIPED("Striped");
+
+    private final String label;
+
+    LoanMode(String label) {
+        this.label = label;
+    }
+
+    /**
+     * @return name to show in the UI
+     */
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * @return the mode named by the library.loanMode system property, LOCKING if unset
+     */
+    public static LoanMode defaultMode() {
+        return valueOf(System.getProperty("library.loanMode", LOCKING.name()).toUpperCase());
+    }
+}
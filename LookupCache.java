@@ -0,0 +1,151 @@
+/*
+ * LookupCache.java
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded cache of formatted lookup results (book, author or customer) keyed by id.
+ *
+ * The cache is bounded by the total length of the cached strings rather than the number of
+ * entries, and evicts least recently used entries first. Each entry also records the ids of the
+ * other kind it mentions (e.g. the isbns listed for an author), so that deleting a book can drop
+ * every author and customer entry that shows it.
+ *
+ * To avoid caching a result that was read before a concurrent change and invalidated while it was
+ * being read, callers take version() before querying and pass it to put(). The put is ignored if
+ * anything was invalidated in between.
+ */
+public class LookupCache {
+
+    private static class Entry {
+        final String value;
+        final int[] refs;
+
+        Entry(String value, int[] refs) {
+            this.value = value;
+            this.refs = refs;
+        }
+    }
+
+    private final String name;
+    private final long maxChars;
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long chars = 0;
+    private long version = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+
+    /**
+     * @param name - used in the statistics, e.g. "Book"
+     * @param maxChars - upper bound on the total length of the cached strings
+     */
+    public LookupCache(String name, long maxChars) {
+        this.name = name;
+        this.maxChars = maxChars;
+    }
+
+
+    /**
+     * @return the cached result for this id, or null
+     */
+    public synchronized String get(int key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    /**
+     * @return a token to pass to put(), taken before reading from the database
+     */
+    public synchronized long version() {
+        return version;
+    }
+
+    /**
+     * Caches a result, unless something was invalidated since version was taken
+     *
+     * @param key
+     * @param value
+     * @param refs - ids of the other kind that the value shows
+     * @param version - from version(), taken before the value was read
+     */
+    public synchronized void put(int key, String value, int[] refs, long version) {
+        if (version != this.version || value.length() > maxChars) {
+            return;
+        }
+        Entry old = entries.put(key, new Entry(value, refs));
+        if (old != null) {
+            chars -= old.value.length();
+        }
+        chars += value.length();
+
+        Iterator<Entry> it = entries.values().iterator();
+        while (chars > maxChars && it.hasNext()) {
+            chars -= it.next().value.length();
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops the entry for this id
+     */
+    public synchronized void invalidate(int key) {
+        version++;
+        Entry old = entries.remove(key);
+        if (old != null) {
+            chars -= old.value.length();
+            invalidations++;
+        }
+    }
+
+    /**
+     * Drops every entry that shows the given id of the other kind
+     */
+    public synchronized void invalidateReferencing(int ref) {
+        version++;
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            for (int r : entry.refs) {
+                if (r == ref) {
+                    chars -= entry.value.length();
+                    it.remove();
+                    invalidations++;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops everything, e.g. when changes may have been missed
+     */
+    public synchronized void invalidateAll() {
+        version++;
+        invalidations += entries.size();
+        entries.clear();
+        chars = 0;
+    }
+
+
+    /**
+     * @return one line of hit rate, size and eviction statistics
+     */
+    public synchronized String getStats() {
+        long total = hits + misses;
+        return String.format("%s cache: %d entries, %d chars, %d hits, %d misses (%.1f%% hit rate), %d evictions, %d invalidations",
+                name, entries.size(), chars, hits, misses, total == 0 ? 0.0 : 100.0 * hits / total, evictions, invalidations);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * OperationMetrics.java
+ */
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, call, error, row and output counts for one LibraryModel operation
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder outputBytes = new LongAdder();
+
+
+    public OperationMetrics(String name) {
+        this.name = name;
+    }
+
+
+    /**
+     * Records one finished call
+     *
+     * @param nanos - how long it took
+     * @param error - whether it failed
+     * @param rows - result set rows it read
+     * @param bytes - size of the output it produced
+     */
+    void record(long nanos, boolean error, long rows, long bytes) {
+        latency.record(nanos);
+        calls.increment();
+        if (error) {
+            errors.increment();
+        }
+        rowsRead.add(rows);
+        outputBytes.add(bytes);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getRowsRead() {
+        return rowsRead.sum();
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return outputBytes.sum();
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.getValueAtPercentile(50) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.getValueAtPercentile(99) / 1e6;
+    }
+
+    @Override
+    public double getP999Millis() {
+        return latency.getValueAtPercentile(99.9) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.getMax() / 1e6;
+    }
+
+    @Override
+    public void reset() {
+        latency.reset();
+        calls.reset();
+        errors.reset();
+        rowsRead.reset();
+        outputBytes.reset();
+    }
+}
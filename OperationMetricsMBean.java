@@ -0,0 +1,30 @@
+/*
+ * OperationMetricsMBean.java
+ */
+
+/**
+ * JMX view of the metrics of one LibraryModel operation, registered as
+ * LibraryModel:type=Operation,name=&lt;operation&gt;
+ */
+public interface OperationMetricsMBean {
+
+    String getName();
+
+    long getCalls();
+
+    long getErrors();
+
+    long getRowsRead();
+
+    long getOutputBytes();
+
+    double getP50Millis();
+
+    double getP99Millis();
+
+    double getP999Millis();
+
+    double getMaxMillis();
+
+    void reset();
+}
@@ -0,0 +1,77 @@
+/*
+ * PooledConnection.java
+ */
+
+import java.sql.*;
+
+/**
+ * A connection borrowed from a ConnectionPool. Closing it hands the underlying connection back
+ * to the pool rather than closing it, so it can be used in try-with-resources.
+ */
+public class PooledConnection implements AutoCloseable {
+
+    private final ConnectionPool pool;
+    private final Connection con;
+    private final StatementCache statements;
+
+    // System.nanoTime() when the connection was last given back, read by the pool
+    long lastUsed = System.nanoTime();
+
+
+    PooledConnection(ConnectionPool pool, Connection con, StatementCache statements) {
+        this.pool = pool;
+        this.con = con;
+        this.statements = statements;
+    }
+
+
+    /**
+     * @return the underlying JDBC connection, only valid until this is closed
+     */
+    public Connection connection() {
+        return con;
+    }
+
+    /**
+     * Prepares a statement through this connection's statement cache. Closing the statement
+     * keeps it prepared for the next call with the same SQL.
+     */
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return statements.prepare(sql);
+    }
+
+    public Statement createStatement() throws SQLException {
+        return con.createStatement();
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        con.setAutoCommit(autoCommit);
+    }
+
+    public void commit() throws SQLException {
+        con.commit();
+    }
+
+    public void rollback() throws SQLException {
+        con.rollback();
+    }
+
+
+    /**
+     * Gives the connection back to the pool
+     */
+    @Override
+    public void close() {
+        pool.release(this);
+    }
+
+    // Called by the pool when the connection is retired
+    void closePhysical() {
+        statements.closeAll();
+        try {
+            con.close();
+        } catch (SQLException e) {
+            // Nothing more to do with a connection we are throwing away
+        }
+    }
+}
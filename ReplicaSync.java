@@ -0,0 +1,332 @@
+/*
+ * ReplicaSync.java
+ */
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a CatalogueReplica current by pulling only changed rows, using the change log and
+ * triggers in library_changelog.sql.
+ *
+ * Each sync runs in one REPEATABLE READ transaction. It notes the oldest transaction still
+ * running (txid_snapshot_xmin), reads the keys logged by every transaction at or after the
+ * watermark left by the previous sync, re-reads just those rows and applies them, then moves
+ * the watermark up to the noted xmin. A transaction that was running during one sync is thus
+ * read again by the next, so nothing that commits late is missed. The first sync, or one after
+ * the log was pruned past the watermark, loads every table in full.
+ */
+public class ReplicaSync implements AutoCloseable {
+
+    private static final String[] TABLES = {"book", "author", "customer", "book_author", "cust_book"};
+
+    private final ConnectionPool pool;
+    private final CatalogueReplica replica;
+    private final long syncMillis;
+    private final ScheduledExecutorService scheduler;
+
+    // Guarded by this
+    private long watermark = -1;
+
+    private volatile boolean loaded = false;
+    private volatile long lastSync = 0;
+    // Set by local changes, so the next read syncs first and sees them
+    private volatile boolean dirty = false;
+
+
+    /**
+     * @param pool - connections to sync with
+     * @param replica - the copy to keep current
+     * @param syncMillis - time between syncs
+     */
+    public ReplicaSync(ConnectionPool pool, CatalogueReplica replica, long syncMillis) {
+        this.pool = pool;
+        this.replica = replica;
+        this.syncMillis = syncMillis;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "library-replica-sync");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+    /**
+     * Starts syncing every syncMillis, the first time straight away
+     */
+    public void start() {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sync();
+            } catch (SQLException e) {
+                System.err.println("Replica sync failed: " + e.getMessage());
+            }
+        }, 0, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Something was changed locally: the next read syncs before it is answered
+     */
+    public void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Syncs now if there are local changes the replica has not seen
+     *
+     * @return true if the replica has been loaded and synced recently enough to answer reads
+     */
+    public boolean prepareRead() {
+        if (dirty && loaded) {
+            try {
+                sync();
+            } catch (SQLException e) {
+                System.err.println("Replica sync failed: " + e.getMessage());
+            }
+        }
+        // Missing a few syncs is fine, but not being cut off from the database or missing our own changes
+        return loaded && !dirty && System.currentTimeMillis() - lastSync < Math.max(3 * syncMillis, 10000);
+    }
+
+
+    /**
+     * Applies every change logged since the last sync
+     */
+    public synchronized void sync() throws SQLException {
+        dirty = false;
+        try (PooledConnection pc = pool.acquire()) {
+            Connection con = pc.connection();
+            con.setAutoCommit(false);
+            try (Statement stmt = con.createStatement()) {
+                stmt.execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ");
+            }
+
+            long xmin;
+            long prunedUpto;
+            try (Statement stmt = con.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT txid_snapshot_xmin(txid_current_snapshot()), " +
+                         "(SELECT upto FROM library_change_log_pruned)")) {
+                rs.next();
+                xmin = rs.getLong(1);
+                prunedUpto = rs.getLong(2);
+            }
+
+            if (!loaded || watermark <= prunedUpto) {
+                loadAll(con);
+            } else {
+                applyChanges(con);
+            }
+            con.commit();
+            watermark = xmin;
+            loaded = true;
+            lastSync = System.currentTimeMillis();
+        } catch (SQLException e) {
+            // Local changes are still unseen, so reads keep going to the database
+            dirty = true;
+            throw e;
+        }
+    }
+
+    /**
+     * @return size of the replica and how current it is
+     */
+    public String getStats() {
+        return replica.getStats() + (loaded ? ", synced " + (System.currentTimeMillis() - lastSync) + " ms ago" : ", not loaded yet");
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+
+    private void loadAll(Connection con) throws SQLException {
+        Map<String, List<Object[]>> rows = new HashMap<>();
+        for (String table : TABLES) {
+            rows.put(table, readRows(con, table, null));
+        }
+        replica.beginUpdate();
+        try {
+            for (String table : TABLES) {
+                replica.clear(table);
+                apply(table, new ArrayList<>(), rows.get(table));
+            }
+        } finally {
+            replica.endUpdate();
+        }
+    }
+
+    private void applyChanges(Connection con) throws SQLException {
+        // Changed keys per table; an empty key means the table was truncated or
+        // bulk-changed, and is reloaded
+        Map<String, Set<List<Integer>>> changed = new HashMap<>();
+        Set<String> truncated = new LinkedHashSet<>();
+        try (PreparedStatement stmt = con.prepareStatement(
+                "SELECT DISTINCT tbl, keys FROM library_change_log WHERE txid >= ?")) {
+            stmt.setLong(1, watermark);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    LibraryMetrics.rowRead();
+                    String table = rs.getString(1);
+                    Integer[] keys = (Integer[]) rs.getArray(2).getArray();
+                    if (keys.length == 0) {
+                        truncated.add(table);
+                    } else {
+                        changed.computeIfAbsent(table, t -> new LinkedHashSet<>()).add(List.of(keys));
+                    }
+                }
+            }
+        }
+        if (changed.isEmpty() && truncated.isEmpty()) {
+            return;
+        }
+
+        Map<String, List<Object[]>> rows = new HashMap<>();
+        for (String table : truncated) {
+            rows.put(table, readRows(con, table, null));
+        }
+        for (Map.Entry<String, Set<List<Integer>>> e : changed.entrySet()) {
+            if (!truncated.contains(e.getKey())) {
+                rows.put(e.getKey(), readRows(con, e.getKey(), new ArrayList<>(e.getValue())));
+            }
+        }
+
+        replica.beginUpdate();
+        try {
+            for (String table : truncated) {
+                replica.clear(table);
+                apply(table, new ArrayList<>(), rows.get(table));
+            }
+            for (Map.Entry<String, Set<List<Integer>>> e : changed.entrySet()) {
+                if (!truncated.contains(e.getKey())) {
+                    apply(e.getKey(), new ArrayList<>(e.getValue()), rows.get(e.getKey()));
+                }
+            }
+        } finally {
+            replica.endUpdate();
+        }
+    }
+
+    // Current rows of a table, all of them or only those with the given keys
+    private static List<Object[]> readRows(Connection con, String table, List<List<Integer>> keys) throws SQLException {
+        String columns;
+        String keyColumns;
+        switch (table) {
+            case "book":
+                columns = "isbn, title, edition_no, numofcop, numleft";
+                keyColumns = "isbn";
+                break;
+            case "author":
+                columns = "authorid, name, surname";
+                keyColumns = "authorid";
+                break;
+            case "customer":
+                columns = "customerid, l_name, f_name, city";
+                keyColumns = "customerid";
+                break;
+            case "book_author":
+                columns = "isbn, authorid, authorseqno";
+                keyColumns = "isbn, authorid";
+                break;
+            case "cust_book":
+                columns = "isbn, customerid";
+                keyColumns = "isbn, customerid";
+                break;
+            default:
+                return new ArrayList<>();
+        }
+        int keyCount = keyColumns.split(", ").length;
+        String sql = "SELECT " + columns + " FROM " + table;
+        if (keys != null) {
+            // One array per key column, unnested side by side
+            StringBuilder unnest = new StringBuilder();
+            for (int i = 0; i < keyCount; i++) {
+                unnest.append(i == 0 ? "" : ", ").append("?::integer[]");
+            }
+            sql += " WHERE (" + keyColumns + ") IN (SELECT * FROM unnest(" + unnest + "))";
+        }
+
+        List<Object[]> rows = new ArrayList<>();
+        try (PreparedStatement stmt = con.prepareStatement(sql)) {
+            if (keys != null) {
+                for (int column = 0; column < keyCount; column++) {
+                    Integer[] values = new Integer[keys.size()];
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = keys.get(i).get(column);
+                    }
+                    stmt.setArray(column + 1, con.createArrayOf("integer", values));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                int width = rs.getMetaData().getColumnCount();
+                while (rs.next()) {
+                    LibraryMetrics.rowRead();
+                    Object[] row = new Object[width];
+                    for (int i = 0; i < width; i++) {
+                        // Keys as ints, everything else as the string the model would have shown
+                        row[i] = i < keyCount ? (Object) rs.getInt(i + 1) : rs.getString(i + 1);
+                    }
+                    if (table.equals("book_author")) {
+                        row[2] = rs.getInt(3); // printed with getInt, so NULL shows as 0
+                    }
+                    rows.add(row);
+                }
+            }
+        }
+        return rows;
+    }
+
+    // Removes every changed key, then puts back the rows that still exist. Caller holds the write lock.
+    private void apply(String table, List<List<Integer>> removedKeys, List<Object[]> rows) {
+        for (List<Integer> key : removedKeys) {
+            switch (table) {
+                case "book":
+                    replica.putBook(key.get(0), null);
+                    break;
+                case "author":
+                    replica.putAuthor(key.get(0), null);
+                    break;
+                case "customer":
+                    replica.putCustomer(key.get(0), null);
+                    break;
+                case "book_author":
+                    replica.putBookAuthor(key.get(0), key.get(1), null);
+                    break;
+                case "cust_book":
+                    replica.putLoan(key.get(0), key.get(1), false);
+                    break;
+                default:
+                    break;
+            }
+        }
+        for (Object[] row : rows) {
+            switch (table) {
+                case "book":
+                    replica.putBook((Integer) row[0], new CatalogueReplica.Book((String) row[1], (String) row[2], (String) row[3], (String) row[4]));
+                    break;
+                case "author":
+                    replica.putAuthor((Integer) row[0], new CatalogueReplica.Author((String) row[1], (String) row[2]));
+                    break;
+                case "customer":
+                    replica.putCustomer((Integer) row[0], new CatalogueReplica.Customer((String) row[1], (String) row[2], (String) row[3]));
+                    break;
+                case "book_author":
+                    replica.putBookAuthor((Integer) row[0], (Integer) row[1], (Integer) row[2]);
+                    break;
+                case "cust_book":
+                    replica.putLoan((Integer) row[0], (Integer) row[1], true);
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
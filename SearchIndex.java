@@ -0,0 +1,372 @@
+/*
+ * SearchIndex.java
+ */
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory inverted index over book titles and author names, for searching the catalogue
+ * without a round trip.
+ *
+ * Each lower-cased word maps to the sorted ISBNs of the books it appears in. Every word of a
+ * query must match a word of the book, exactly, as a prefix or as a substring; books are ranked
+ * by how well their words match, so "tolk hob" finds The Hobbit by Tolkien first.
+ *
+ * The index is loaded with one query and then kept up to date incrementally: changed books and
+ * authors are marked stale, e.g. from ChangeListener notifications, and re-read just before the
+ * next search.
+ */
+public class SearchIndex {
+
+    private static final int EXACT = 4;
+    private static final int PREFIX = 2;
+    private static final int SUBSTRING = 1;
+
+    private static final String BOOK_QUERY =
+            "SELECT b.isbn, b.title, string_agg(trim(a.name) || ' ' || trim(a.surname), ', ' ORDER BY ba.authorseqno) AS authors, " +
+            "array_remove(array_agg(ba.authorid), NULL) AS authorids " +
+            "FROM book b " +
+            "LEFT JOIN book_author ba ON b.isbn = ba.isbn " +
+            "LEFT JOIN author a ON ba.authorid = a.authorid ";
+
+    /**
+     * One search result
+     */
+    public static class Match {
+        public final int isbn;
+        public final String title;
+        public final String authors;
+        public final int score;
+
+        Match(int isbn, String title, String authors, int score) {
+            this.isbn = isbn;
+            this.title = title;
+            this.authors = authors;
+            this.score = score;
+        }
+    }
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // word -> sorted ISBNs of the books containing it
+    private final TreeMap<String, int[]> postings = new TreeMap<>();
+    // isbn -> its words, title and authors, so a book can be taken out again
+    private final Map<Integer, String[]> bookWords = new HashMap<>();
+    private final Map<Integer, String> titles = new HashMap<>();
+    private final Map<Integer, String> authors = new HashMap<>();
+    private final Map<Integer, int[]> bookAuthors = new HashMap<>();
+    // authorid -> isbns of their indexed books, so a deleted author's books can still be found
+    private final Map<Integer, Set<Integer>> authorBooks = new HashMap<>();
+
+    // Changes not yet applied, guarded by themselves
+    private final Set<Integer> staleBooks = new HashSet<>();
+    private final Set<Integer> staleAuthors = new HashSet<>();
+    private volatile boolean loaded = false;
+
+
+    /**
+     * @return true once load has been called, and until everything is marked stale
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+
+    /**
+     * Replaces the whole index with the books in the database
+     */
+    public void load(Connection con) throws SQLException {
+        synchronized (staleBooks) {
+            staleBooks.clear();
+            staleAuthors.clear();
+        }
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            bookWords.clear();
+            titles.clear();
+            authors.clear();
+            bookAuthors.clear();
+            authorBooks.clear();
+            try (PreparedStatement stmt = con.prepareStatement(BOOK_QUERY + "GROUP BY b.isbn");
+                 ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    LibraryMetrics.rowRead();
+                    add(rs.getInt("isbn"), rs.getString("title"), rs.getString("authors"), authorIDs(rs));
+                }
+            }
+            loaded = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * The book, its authors or its title changed: re-read it before the next search
+     */
+    public void bookChanged(int isbn) {
+        synchronized (staleBooks) {
+            staleBooks.add(isbn);
+        }
+    }
+
+    /**
+     * The author's name changed: re-read their books before the next search
+     */
+    public void authorChanged(int authorID) {
+        synchronized (staleBooks) {
+            staleAuthors.add(authorID);
+        }
+    }
+
+    /**
+     * Anything may have changed: the index is reloaded before the next search
+     */
+    public void invalidateAll() {
+        loaded = false;
+    }
+
+
+    /**
+     * @return true if refresh has anything to do, so searches only need a connection now and then
+     */
+    public boolean needsRefresh() {
+        if (!loaded) {
+            return true;
+        }
+        synchronized (staleBooks) {
+            return !staleBooks.isEmpty() || !staleAuthors.isEmpty();
+        }
+    }
+
+
+    /**
+     * Applies any changes marked since the last search, loading the index if it is not loaded
+     */
+    public void refresh(Connection con) throws SQLException {
+        if (!loaded) {
+            load(con);
+            return;
+        }
+        int[] isbns;
+        int[] authorIDs;
+        synchronized (staleBooks) {
+            isbns = staleBooks.stream().mapToInt(Integer::intValue).toArray();
+            authorIDs = staleAuthors.stream().mapToInt(Integer::intValue).toArray();
+            staleBooks.clear();
+            staleAuthors.clear();
+        }
+        if (isbns.length == 0 && authorIDs.length == 0) {
+            return;
+        }
+
+        Set<Integer> changed = new HashSet<>();
+        for (int isbn : isbns) {
+            changed.add(isbn);
+        }
+        lock.writeLock().lock();
+        try {
+            // New books of an author arrive as book changes, so only indexed books need re-reading
+            for (int authorID : authorIDs) {
+                changed.addAll(authorBooks.getOrDefault(authorID, new HashSet<>()));
+            }
+            for (int isbn : changed) {
+                remove(isbn);
+            }
+            try (PreparedStatement stmt = con.prepareStatement(BOOK_QUERY + "WHERE b.isbn = ANY (?) GROUP BY b.isbn")) {
+                stmt.setArray(1, con.createArrayOf("integer", changed.toArray(new Integer[0])));
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        add(rs.getInt("isbn"), rs.getString("title"), rs.getString("authors"), authorIDs(rs));
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * @param query - words to look for, in any order
+     * @param limit - most results returned
+     * @return books matching every word, best first
+     */
+    public List<Match> search(String query, int limit) {
+        String[] words = tokenize(query);
+        if (words.length == 0) {
+            return new ArrayList<>();
+        }
+        lock.readLock().lock();
+        try {
+            Map<Integer, Integer> scores = null;
+            for (String word : words) {
+                Map<Integer, Integer> wordScores = scoreWord(word);
+                if (scores == null) {
+                    scores = wordScores;
+                } else {
+                    // Keep only books matching every word so far
+                    Map<Integer, Integer> both = new HashMap<>();
+                    for (Map.Entry<Integer, Integer> e : scores.entrySet()) {
+                        Integer score = wordScores.get(e.getKey());
+                        if (score != null) {
+                            both.put(e.getKey(), e.getValue() + score);
+                        }
+                    }
+                    scores = both;
+                }
+                if (scores.isEmpty()) {
+                    break;
+                }
+            }
+
+            List<Match> matches = new ArrayList<>(scores.size());
+            for (Map.Entry<Integer, Integer> e : scores.entrySet()) {
+                int isbn = e.getKey();
+                matches.add(new Match(isbn, titles.get(isbn), authors.get(isbn), e.getValue()));
+            }
+            matches.sort((a, b) -> a.score != b.score ? Integer.compare(b.score, a.score) : Integer.compare(a.isbn, b.isbn));
+            return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of books indexed
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return titles.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+
+    // Best score of each book for one query word. Prefix matches are a range of the sorted
+    // words; substring matches need a scan, but the vocabulary is small.
+    private Map<Integer, Integer> scoreWord(String word) {
+        Map<Integer, Integer> scores = new HashMap<>();
+        SortedMap<String, int[]> prefixed = postings.subMap(word, word + Character.MAX_VALUE);
+        for (Map.Entry<String, int[]> e : prefixed.entrySet()) {
+            score(scores, e.getValue(), e.getKey().length() == word.length() ? EXACT : PREFIX);
+        }
+        for (Map.Entry<String, int[]> e : postings.entrySet()) {
+            String key = e.getKey();
+            if (key.length() > word.length() && !key.startsWith(word) && key.contains(word)) {
+                score(scores, e.getValue(), SUBSTRING);
+            }
+        }
+        return scores;
+    }
+
+    private static void score(Map<Integer, Integer> scores, int[] isbns, int score) {
+        for (int isbn : isbns) {
+            scores.merge(isbn, score, Math::max);
+        }
+    }
+
+
+    // Caller holds the write lock
+    private void add(int isbn, String title, String authorNames, int[] authorIDs) {
+        title = title == null ? "" : title.trim();
+        authorNames = authorNames == null ? "" : authorNames;
+        String[] words = distinct(tokenize(title + " " + authorNames));
+        bookWords.put(isbn, words);
+        titles.put(isbn, title);
+        authors.put(isbn, authorNames);
+        bookAuthors.put(isbn, authorIDs);
+        for (int authorID : authorIDs) {
+            authorBooks.computeIfAbsent(authorID, id -> new HashSet<>()).add(isbn);
+        }
+        for (String word : words) {
+            int[] isbns = postings.get(word);
+            if (isbns == null) {
+                postings.put(word, new int[]{isbn});
+            } else {
+                int at = Arrays.binarySearch(isbns, isbn);
+                if (at < 0) {
+                    at = -at - 1;
+                    int[] grown = new int[isbns.length + 1];
+                    System.arraycopy(isbns, 0, grown, 0, at);
+                    grown[at] = isbn;
+                    System.arraycopy(isbns, at, grown, at + 1, isbns.length - at);
+                    postings.put(word, grown);
+                }
+            }
+        }
+    }
+
+    // Caller holds the write lock
+    private void remove(int isbn) {
+        String[] words = bookWords.remove(isbn);
+        titles.remove(isbn);
+        authors.remove(isbn);
+        for (int authorID : bookAuthors.getOrDefault(isbn, new int[0])) {
+            Set<Integer> isbns = authorBooks.get(authorID);
+            if (isbns != null && isbns.remove(isbn) && isbns.isEmpty()) {
+                authorBooks.remove(authorID);
+            }
+        }
+        bookAuthors.remove(isbn);
+        if (words == null) {
+            return;
+        }
+        for (String word : words) {
+            int[] isbns = postings.get(word);
+            int at = isbns == null ? -1 : Arrays.binarySearch(isbns, isbn);
+            if (at < 0) {
+                continue;
+            }
+            if (isbns.length == 1) {
+                postings.remove(word);
+            } else {
+                int[] shrunk = new int[isbns.length - 1];
+                System.arraycopy(isbns, 0, shrunk, 0, at);
+                System.arraycopy(isbns, at + 1, shrunk, at, isbns.length - at - 1);
+                postings.put(word, shrunk);
+            }
+        }
+    }
+
+    private static int[] authorIDs(ResultSet rs) throws SQLException {
+        Array array = rs.getArray("authorids");
+        if (array == null) {
+            return new int[0];
+        }
+        Integer[] ids = (Integer[]) array.getArray();
+        int[] result = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = ids[i];
+        }
+        return result;
+    }
+
+    private static String[] tokenize(String text) {
+        String[] words = text.toLowerCase().split("[^\\p{L}\\p{N}]+");
+        int n = 0;
+        for (String word : words) {
+            if (!word.isEmpty()) {
+                words[n++] = word;
+            }
+        }
+        return Arrays.copyOf(words, n);
+    }
+
+    private static String[] distinct(String[] words) {
+        return Arrays.stream(words).distinct().toArray(String[]::new);
+    }
+}
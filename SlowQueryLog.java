@@ -0,0 +1,162 @@
+/*
+ * SlowQueryLog.java
+ */
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Writes statements that take longer than a threshold to a rotating log file: the SQL, the bound
+ * parameters, the duration and the number of rows. Optionally the plan is captured too, by
+ * running EXPLAIN (ANALYZE, BUFFERS) with the same parameters.
+ *
+ * Statements are timed by StatementCache, from execution until their result set is closed, so
+ * queries read through a cursor include the time spent fetching. EXPLAIN ANALYZE runs the query
+ * again, so it is only used for plain SELECTs, never for statements that lock or change rows.
+ *
+ * Configured with system properties:
+ *     library.slowQuery.thresholdMs   log statements slower than this; unset or negative leaves
+ *                                     logging off, so nothing is timed or written [-1]
+ *     library.slowQuery.explain       also capture the plan [false]
+ *     library.slowQuery.file          java.util.logging file pattern [%h/library-slow-queries.%g.log]
+ *     library.slowQuery.limitBytes    size at which the log rotates [1000000]
+ *     library.slowQuery.files         rotated files kept [5]
+ */
+public class SlowQueryLog {
+
+    private final long thresholdNanos;
+    private final boolean explain;
+    private final Logger logger;
+
+    // The shared log file, opened once however many models (e.g. in LibraryBenchmark) ask for it
+    private static Logger fileLogger = null;
+
+
+    public SlowQueryLog(long thresholdMillis, boolean explain, Logger logger) {
+        this.thresholdNanos = thresholdMillis * 1000000L;
+        this.explain = explain;
+        this.logger = logger;
+    }
+
+
+    /**
+     * @return a log configured from the library.slowQuery.* system properties, or null if turned off
+     */
+    public static SlowQueryLog fromSystemProperties() {
+        long thresholdMillis = Long.getLong("library.slowQuery.thresholdMs", -1);
+        if (thresholdMillis < 0) {
+            return null;
+        }
+        Logger logger = openFileLogger();
+        if (logger == null) {
+            return null;
+        }
+        return new SlowQueryLog(thresholdMillis, Boolean.getBoolean("library.slowQuery.explain"), logger);
+    }
+
+    // The logger writing to library.slowQuery.file, with its handler added on first use only
+    private static synchronized Logger openFileLogger() {
+        if (fileLogger != null) {
+            return fileLogger;
+        }
+        Logger logger = Logger.getLogger("library.slowquery");
+        logger.setUseParentHandlers(false);
+        try {
+            FileHandler handler = new FileHandler(
+                    System.getProperty("library.slowQuery.file", "%h/library-slow-queries.%g.log"),
+                    Integer.getInteger("library.slowQuery.limitBytes", 1000000),
+                    Integer.getInteger("library.slowQuery.files", 5),
+                    true);
+            handler.setFormatter(new Formatter() {
+                @Override
+                public String format(LogRecord record) {
+                    return String.format("%1$tF %1$tT %2$s%n%n", record.getMillis(), record.getMessage());
+                }
+            });
+            logger.addHandler(handler);
+        } catch (IOException e) {
+            System.err.println("Slow query log disabled, cannot open log file: " + e.getMessage());
+            return null;
+        }
+        fileLogger = logger;
+        return logger;
+    }
+
+
+    /**
+     * @return true if a statement that took this long should be logged
+     */
+    public boolean isSlow(long nanos) {
+        return nanos >= thresholdNanos;
+    }
+
+
+    /**
+     * Logs a statement if it was slow
+     *
+     * @param con - connection it ran on, used to capture the plan
+     * @param sql
+     * @param params - bound parameters, params[i] for parameter i + 1
+     * @param nanos - how long it took
+     * @param rows - rows read or changed
+     */
+    public void record(Connection con, String sql, Object[] params, long nanos, long rows) {
+        if (!isSlow(nanos)) {
+            return;
+        }
+        StringBuilder message = new StringBuilder();
+        message.append(String.format("%.1f ms, %d rows%n", nanos / 1e6, rows));
+        message.append("    SQL: ").append(sql).append("\n");
+        message.append("    Parameters: ").append(Arrays.toString(params));
+        if (explain && isPlainSelect(sql)) {
+            message.append("\n    Plan:\n");
+            appendPlan(con, sql, params, message);
+        }
+        logger.log(Level.INFO, message.toString());
+    }
+
+
+    // A statement EXPLAIN ANALYZE can safely run again: reads only and takes no row locks
+    private static boolean isPlainSelect(String sql) {
+        String upper = sql.trim().toUpperCase();
+        return upper.startsWith("SELECT") && !upper.contains(" FOR UPDATE") && !upper.contains(" FOR SHARE");
+    }
+
+    // Runs inside the caller's transaction, under a savepoint so a failure cannot abort it
+    private static void appendPlan(Connection con, String sql, Object[] params, StringBuilder message) {
+        Savepoint savepoint = null;
+        try {
+            if (!con.getAutoCommit()) {
+                savepoint = con.setSavepoint();
+            }
+            try (PreparedStatement stmt = con.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql)) {
+                for (int i = 0; i < params.length; i++) {
+                    stmt.setObject(i + 1, params[i]);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        message.append("        ").append(rs.getString(1)).append("\n");
+                    }
+                }
+            }
+            if (savepoint != null) {
+                con.releaseSavepoint(savepoint);
+            }
+        } catch (SQLException e) {
+            message.append("        (plan not available: ").append(e.getMessage()).append(")\n");
+            if (savepoint != null) {
+                try {
+                    con.rollback(savepoint);
+                } catch (SQLException re) {
+                    // The caller will see the transaction has failed
+                }
+            }
+        }
+    }
+}
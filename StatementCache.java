@@ -0,0 +1,277 @@
+/*
+ * StatementCache.java
+ */
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prepared statements of one pooled connection, keyed by SQL text and evicted least recently
+ * used first.
+ *
+ * prepare() hands out a wrapper whose close() puts the statement back in the cache instead of
+ * closing it, so callers keep using try-with-resources. A statement is removed from the cache
+ * while it is handed out, so asking for the same SQL twice at once just prepares a second one.
+ * Only the thread holding the connection uses its cache, so it needs no locking.
+ *
+ * With a SlowQueryLog, the wrapper also remembers the parameters set and times each execution;
+ * a query is timed until its result set is closed, counting the rows read through it.
+ */
+public class StatementCache {
+
+    /**
+     * Hit, miss and eviction counts, shared by the caches of every connection in a pool
+     */
+    public static class Stats {
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder evictions = new LongAdder();
+
+        public long getHits() {
+            return hits.sum();
+        }
+
+        public long getMisses() {
+            return misses.sum();
+        }
+
+        public long getEvictions() {
+            return evictions.sum();
+        }
+
+        @Override
+        public String toString() {
+            long h = getHits();
+            long total = h + getMisses();
+            return "Statement cache: " + h + " hits, " + getMisses() + " misses, " + getEvictions() + " evictions"
+                    + (total == 0 ? "" : String.format(" (%.1f%% hit rate)", 100.0 * h / total));
+        }
+    }
+
+    private final Connection con;
+    private final int capacity;
+    private final Stats stats;
+    private final SlowQueryLog slowQueryLog;
+
+    // Statements not currently handed out, in access order
+    private final LinkedHashMap<String, PreparedStatement> idle = new LinkedHashMap<>(16, 0.75f, true);
+
+
+    /**
+     * @param con
+     * @param capacity - statements kept
+     * @param stats - counts to add to
+     * @param slowQueryLog - where slow statements are logged, null for none
+     */
+    public StatementCache(Connection con, int capacity, Stats stats, SlowQueryLog slowQueryLog) {
+        this.con = con;
+        this.capacity = capacity;
+        this.stats = stats;
+        this.slowQueryLog = slowQueryLog;
+    }
+
+
+    /**
+     * Returns the cached statement for this SQL, preparing it on a miss. Closing the returned
+     * statement gives it back to the cache.
+     *
+     * @param sql
+     * @return statement - with no parameters set
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = idle.remove(sql);
+        if (stmt != null) {
+            stats.hits.increment();
+        } else {
+            stats.misses.increment();
+            stmt = con.prepareStatement(sql);
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new CachedStatement(sql, stmt));
+    }
+
+
+    /**
+     * Closes every cached statement, called before the connection itself is closed
+     */
+    public void closeAll() {
+        for (PreparedStatement stmt : idle.values()) {
+            closeQuietly(stmt);
+        }
+        idle.clear();
+    }
+
+
+    private void giveBack(String sql, PreparedStatement stmt) {
+        try {
+            // A result set the caller left open would hold a cursor into the next borrower's use
+            ResultSet open = stmt.getResultSet();
+            if (open != null) {
+                open.close();
+            }
+            stmt.clearParameters();
+        } catch (SQLException e) {
+            closeQuietly(stmt);
+            return;
+        }
+        PreparedStatement replaced = idle.put(sql, stmt);
+        if (replaced != null) {
+            closeQuietly(replaced); // a second copy was handed out while this one was
+        }
+        Iterator<Map.Entry<String, PreparedStatement>> it = idle.entrySet().iterator();
+        while (idle.size() > capacity && it.hasNext()) {
+            closeQuietly(it.next().getValue());
+            it.remove();
+            stats.evictions.increment();
+        }
+    }
+
+    private static void closeQuietly(Statement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            // Statement is being thrown away anyway
+        }
+    }
+
+
+    private static Object invokeOn(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+
+    // Delegates everything to the real statement, except that close() returns it to the cache
+    private class CachedStatement implements InvocationHandler {
+        private final String sql;
+        private final PreparedStatement target;
+        private boolean closed = false;
+
+        // Parameters bound so far, only kept for the slow query log
+        private Object[] params = new Object[0];
+
+        CachedStatement(String sql, PreparedStatement target) {
+            this.sql = sql;
+            this.target = target;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        giveBack(sql, target);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || target.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    if (closed) {
+                        throw new SQLException("Statement has been returned to the cache.");
+                    }
+                    if (slowQueryLog == null) {
+                        return invokeOn(target, method, args);
+                    }
+                    return invokeLogged(name, method, args);
+            }
+        }
+
+        private Object invokeLogged(String name, Method method, Object[] args) throws Throwable {
+            if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+                bind((Integer) args[0], args[1]);
+                return invokeOn(target, method, args);
+            }
+            if (name.equals("clearParameters")) {
+                params = new Object[0];
+                return invokeOn(target, method, args);
+            }
+            if (!name.startsWith("execute") || (args != null && args.length > 0)) {
+                return invokeOn(target, method, args);
+            }
+
+            long start = System.nanoTime();
+            Object result = invokeOn(target, method, args);
+            if (result instanceof ResultSet) {
+                return Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                        new TimedResultSet((ResultSet) result, sql, params.clone(), start));
+            }
+            long rows = 0;
+            if (result instanceof Integer || result instanceof Long) {
+                rows = ((Number) result).longValue();
+            } else if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    rows += Math.max(count, 0);
+                }
+            }
+            slowQueryLog.record(con, sql, params.clone(), System.nanoTime() - start, rows);
+            return result;
+        }
+
+        private void bind(int index, Object value) {
+            if (index > params.length) {
+                params = Arrays.copyOf(params, index);
+            }
+            params[index - 1] = value;
+        }
+    }
+
+
+    // Counts the rows read from a query and logs it when closed, if it was slow
+    private class TimedResultSet implements InvocationHandler {
+        private final ResultSet target;
+        private final String sql;
+        private final Object[] params;
+        private final long start;
+        private long rows = 0;
+        private boolean logged = false;
+
+        TimedResultSet(ResultSet target, String sql, Object[] params, long start) {
+            this.target = target;
+            this.sql = sql;
+            this.params = params;
+            this.start = start;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "next":
+                    Object more = invokeOn(target, method, args);
+                    if ((Boolean) more) {
+                        rows++;
+                    }
+                    return more;
+                case "close":
+                    invokeOn(target, method, args);
+                    if (!logged) {
+                        logged = true;
+                        slowQueryLog.record(con, sql, params, System.nanoTime() - start, rows);
+                    }
+                    return null;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    return invokeOn(target, method, args);
+            }
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * LibraryModelBenchmark.java
+ */
+
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+import java.util.function.IntSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * The operations of LibraryBenchmark under JMH: one fork per operation, so JIT profiles and
+ * caches do not carry over from one to the next, and the result of every call is consumed.
+ *
+ * The model and its seeding come from LibraryBenchmark.openFixture, reached by reflection since
+ * the library classes are in the default package. Each call's prepare() (e.g. inserting the row
+ * a delete removes) runs in an invocation-level setup, outside the measured time. JMH warns
+ * that timing such setups costs a little per call; every operation here is at least one
+ * database round trip, which dwarfs it.
+ *
+ * Parameters, set with -p name=value:
+ *     url, user, password   database to run against; user defaults to the current user
+ *     seed                  true to drop and refill the library tables first, as --seed does
+ *     operation             entries of LibraryBenchmark.OPERATIONS, comma separated [all]
+ *
+ * e.g. java -jar jmh/target/benchmarks.jar -p url=jdbc:postgresql://localhost/library_bench \
+ *          -p operation=hotBorrowReturn:singleRow,hotBorrowReturn:striped -t 16 -prof gc
+ *
+ * -prof gc reports gc.alloc.rate.norm, allocation per call on every thread of the forked JVM,
+ * including the model's own (group commit, replica sync), which the plain loop cannot see.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LibraryModelBenchmark {
+
+    @Param("jdbc:postgresql://localhost/library_bench")
+    public String url;
+
+    @Param("")
+    public String user;
+
+    @Param("")
+    public String password;
+
+    @Param("false")
+    public boolean seed;
+
+    @Param({"bookLookup", "showCatalogue", "nextCataloguePage", "showLoanedBooks", "showAuthor",
+            "showAllAuthors", "showCustomer", "showAllCustomers",
+            "borrowReturn:LOCKING", "borrowReturn:OPTIMISTIC", "borrowReturn:SINGLE_STATEMENT",
+            "borrowReturn:GROUP_COMMIT", "borrowReturn:STRIPED",
+            "hotBorrowReturn:singleRow", "hotBorrowReturn:striped",
+            "deleteBook", "deleteAuthor", "deleteCus"})
+    public String operation;
+
+    private Object fixture;
+    IntSupplier prepare;
+    IntFunction<String> call;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void open(BenchmarkParams params) throws Exception {
+        String userName = user.isEmpty() ? System.getProperty("user.name") : user;
+        fixture = Class.forName("LibraryBenchmark")
+                .getMethod("openFixture", String.class, String.class, String.class, boolean.class, String.class, int.class)
+                .invoke(null, url, userName, password, seed, operation, params.getThreads());
+        prepare = (IntSupplier) fixture;
+        call = (IntFunction<String>) fixture;
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws Exception {
+        ((AutoCloseable) fixture).close();
+    }
+
+    /**
+     * The id the next call on this thread is made with
+     */
+    @State(Scope.Thread)
+    public static class Call {
+        int id;
+
+        @Setup(Level.Invocation)
+        public void prepare(LibraryModelBenchmark benchmark) {
+            id = benchmark.prepare.getAsInt();
+        }
+    }
+
+    @Benchmark
+    public String call(Call next) {
+        return call.apply(next.id);
+    }
+}
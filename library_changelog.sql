@@ -0,0 +1,221 @@
+-- library_changelog.sql
+--
+-- A change log for ReplicaSync, which keeps an in-memory copy of the library tables current by
+-- pulling only the rows that changed. Every insert, update or delete on book, author,
+-- book_author, customer and cust_book appends the table name, the key of the row and the id
+-- of the writing transaction:
+--
+--     book          {isbn}
+--     author        {authorid}
+--     customer      {customerid}
+--     cust_book     {isbn, customerid}
+--     book_author   {isbn, authorid}
+--
+-- A TRUNCATE logs the table with an empty key, which makes clients reload that table. So does
+-- a statement changing more than library_change_log_row_limit() rows (1000, replace the
+-- function to change it), such as a bulk import, rather than logging every row. The triggers
+-- run once per statement and read the changed rows from its transition tables, so a statement
+-- that changes nothing logs nothing. Needs PostgreSQL 10 or later.
+--
+-- Clients keep a watermark, the oldest transaction that was still running at their last sync
+-- (txid_snapshot_xmin), and next time read every entry at or after it. Entries are re-read
+-- until they fall behind the watermark, so a transaction that commits late is never missed.
+--
+-- The log only needs to reach back as far as the slowest client. Prune it now and then with
+--
+--     SELECT library_prune_change_log(interval '1 day');
+--
+-- Clients whose watermark is older than the pruned entries reload everything.
+--
+-- It also keeps library_catalogue_revision, one counter bumped by every statement that writes
+-- the catalogue columns of book, author or book_author (not by loans, which only touch
+-- numleft). Clients compare it with the marker of their catalogue snapshot, which is much
+-- cheaper than hashing the catalogue.
+--
+-- Run this once against the library database, e.g.
+--
+--     psql -d <id>_jdbc -f library_changelog.sql
+
+CREATE TABLE IF NOT EXISTS library_change_log (
+    id bigserial PRIMARY KEY,
+    txid bigint NOT NULL DEFAULT txid_current(),
+    logged timestamptz NOT NULL DEFAULT now(),
+    tbl text NOT NULL,
+    keys integer[] NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS library_change_log_txid ON library_change_log (txid);
+
+-- Highest txid removed by pruning, one row
+CREATE TABLE IF NOT EXISTS library_change_log_pruned (
+    upto bigint NOT NULL
+);
+INSERT INTO library_change_log_pruned SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM library_change_log_pruned);
+
+-- The catalogue revision, one row
+CREATE TABLE IF NOT EXISTS library_catalogue_revision (
+    rev bigint NOT NULL
+);
+INSERT INTO library_catalogue_revision SELECT 0 WHERE NOT EXISTS (SELECT 1 FROM library_catalogue_revision);
+
+CREATE OR REPLACE FUNCTION library_bump_catalogue_revision() RETURNS trigger AS $$
+BEGIN
+    UPDATE library_catalogue_revision SET rev = rev + 1;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION library_change_keys(tbl text, r jsonb) RETURNS integer[] AS $$
+    SELECT CASE tbl
+        WHEN 'book' THEN ARRAY[(r->>'isbn')::integer]
+        WHEN 'author' THEN ARRAY[(r->>'authorid')::integer]
+        WHEN 'customer' THEN ARRAY[(r->>'customerid')::integer]
+        WHEN 'cust_book' THEN ARRAY[(r->>'isbn')::integer, (r->>'customerid')::integer]
+        WHEN 'book_author' THEN ARRAY[(r->>'isbn')::integer, (r->>'authorid')::integer]
+    END
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION library_change_log_row_limit() RETURNS integer AS $$
+    SELECT 1000
+$$ LANGUAGE sql IMMUTABLE;
+
+-- Statement level: the changed rows are in the transition tables old_rows and new_rows, as far
+-- as the trigger's event has them
+CREATE OR REPLACE FUNCTION library_log_change() RETURNS trigger AS $$
+DECLARE
+    changed integer;
+BEGIN
+    IF TG_OP = 'TRUNCATE' THEN
+        INSERT INTO library_change_log (tbl, keys) VALUES (TG_TABLE_NAME, '{}');
+        RETURN NULL;
+    END IF;
+    -- Counts no further than the limit, so a huge statement is not read twice
+    IF TG_OP = 'INSERT' THEN
+        SELECT count(*) INTO changed FROM (SELECT 1 FROM new_rows LIMIT library_change_log_row_limit() + 1) r;
+    ELSE
+        SELECT count(*) INTO changed FROM (SELECT 1 FROM old_rows LIMIT library_change_log_row_limit() + 1) r;
+    END IF;
+    IF changed = 0 THEN
+        RETURN NULL;
+    END IF;
+    IF changed > library_change_log_row_limit() THEN
+        INSERT INTO library_change_log (tbl, keys) VALUES (TG_TABLE_NAME, '{}');
+        RETURN NULL;
+    END IF;
+    -- An update that changes the key logs both the old and the new key
+    IF TG_OP <> 'INSERT' THEN
+        INSERT INTO library_change_log (tbl, keys)
+            SELECT TG_TABLE_NAME, library_change_keys(TG_TABLE_NAME, to_jsonb(o)) FROM old_rows o;
+    END IF;
+    IF TG_OP = 'INSERT' THEN
+        INSERT INTO library_change_log (tbl, keys)
+            SELECT TG_TABLE_NAME, library_change_keys(TG_TABLE_NAME, to_jsonb(n)) FROM new_rows n;
+    ELSIF TG_OP = 'UPDATE' THEN
+        INSERT INTO library_change_log (tbl, keys)
+            SELECT TG_TABLE_NAME, k FROM (
+                SELECT library_change_keys(TG_TABLE_NAME, to_jsonb(n)) FROM new_rows n
+                EXCEPT
+                SELECT library_change_keys(TG_TABLE_NAME, to_jsonb(o)) FROM old_rows o) moved(k);
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION library_prune_change_log(keep interval) RETURNS bigint AS $$
+DECLARE
+    removed bigint;
+    newest bigint;
+BEGIN
+    WITH gone AS (DELETE FROM library_change_log WHERE logged < now() - keep RETURNING txid)
+    SELECT count(*), max(txid) INTO removed, newest FROM gone;
+    IF removed > 0 THEN
+        UPDATE library_change_log_pruned SET upto = greatest(upto, newest);
+    END IF;
+    RETURN removed;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS library_log_change ON book;
+DROP TRIGGER IF EXISTS library_log_change_insert ON book;
+DROP TRIGGER IF EXISTS library_log_change_update ON book;
+DROP TRIGGER IF EXISTS library_log_change_delete ON book;
+DROP TRIGGER IF EXISTS library_log_change_truncate ON book;
+CREATE TRIGGER library_log_change_insert AFTER INSERT ON book
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_update AFTER UPDATE ON book
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_delete AFTER DELETE ON book
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_truncate AFTER TRUNCATE ON book
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+
+DROP TRIGGER IF EXISTS library_log_change ON author;
+DROP TRIGGER IF EXISTS library_log_change_insert ON author;
+DROP TRIGGER IF EXISTS library_log_change_update ON author;
+DROP TRIGGER IF EXISTS library_log_change_delete ON author;
+DROP TRIGGER IF EXISTS library_log_change_truncate ON author;
+CREATE TRIGGER library_log_change_insert AFTER INSERT ON author
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_update AFTER UPDATE ON author
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_delete AFTER DELETE ON author
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_truncate AFTER TRUNCATE ON author
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+
+DROP TRIGGER IF EXISTS library_log_change ON customer;
+DROP TRIGGER IF EXISTS library_log_change_insert ON customer;
+DROP TRIGGER IF EXISTS library_log_change_update ON customer;
+DROP TRIGGER IF EXISTS library_log_change_delete ON customer;
+DROP TRIGGER IF EXISTS library_log_change_truncate ON customer;
+CREATE TRIGGER library_log_change_insert AFTER INSERT ON customer
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_update AFTER UPDATE ON customer
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_delete AFTER DELETE ON customer
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_truncate AFTER TRUNCATE ON customer
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+
+DROP TRIGGER IF EXISTS library_log_change ON cust_book;
+DROP TRIGGER IF EXISTS library_log_change_insert ON cust_book;
+DROP TRIGGER IF EXISTS library_log_change_update ON cust_book;
+DROP TRIGGER IF EXISTS library_log_change_delete ON cust_book;
+DROP TRIGGER IF EXISTS library_log_change_truncate ON cust_book;
+CREATE TRIGGER library_log_change_insert AFTER INSERT ON cust_book
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_update AFTER UPDATE ON cust_book
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_delete AFTER DELETE ON cust_book
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_truncate AFTER TRUNCATE ON cust_book
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+
+DROP TRIGGER IF EXISTS library_log_change ON book_author;
+DROP TRIGGER IF EXISTS library_log_change_insert ON book_author;
+DROP TRIGGER IF EXISTS library_log_change_update ON book_author;
+DROP TRIGGER IF EXISTS library_log_change_delete ON book_author;
+DROP TRIGGER IF EXISTS library_log_change_truncate ON book_author;
+CREATE TRIGGER library_log_change_insert AFTER INSERT ON book_author
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_update AFTER UPDATE ON book_author
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_delete AFTER DELETE ON book_author
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+CREATE TRIGGER library_log_change_truncate AFTER TRUNCATE ON book_author
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_log_change();
+
+DROP TRIGGER IF EXISTS library_catalogue_revision ON book;
+CREATE TRIGGER library_catalogue_revision
+    AFTER INSERT OR UPDATE OF isbn, title, edition_no, numofcop OR DELETE OR TRUNCATE ON book
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_bump_catalogue_revision();
+
+DROP TRIGGER IF EXISTS library_catalogue_revision ON author;
+CREATE TRIGGER library_catalogue_revision
+    AFTER INSERT OR UPDATE OF authorid, name, surname OR DELETE OR TRUNCATE ON author
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_bump_catalogue_revision();
+
+DROP TRIGGER IF EXISTS library_catalogue_revision ON book_author;
+CREATE TRIGGER library_catalogue_revision
+    AFTER INSERT OR UPDATE OR DELETE OR TRUNCATE ON book_author
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_bump_catalogue_revision();
@@ -0,0 +1,141 @@
+-- library_notify.sql
+--
+-- Triggers that tell every running LibraryUI which rows changed, so their caches can drop
+-- exactly those entries. Each changed row sends a NOTIFY on the library_changes channel with
+-- a payload of the table name and key:
+--
+--     book:<isbn>
+--     author:<authorid>
+--     customer:<customerid>
+--     cust_book:<isbn>:<customerid>
+--     book_author:<isbn>:<authorid>
+--     <table>:*              (TRUNCATE, or a statement changing many rows)
+--
+-- The triggers run once per statement and read the changed rows from its transition tables.
+-- A statement that changes more than library_notify_row_limit() rows (100, replace the function
+-- to change it), such as a bulk import, sends the one <table>:* notification instead of one per
+-- row, and clients drop everything they cached from that table. Statements that change no rows
+-- send nothing.
+--
+-- Notifications are only delivered when the transaction commits, and duplicates within one
+-- transaction are sent once. Needs PostgreSQL 10 or later. Run this once against the library database, e.g.
+--
+--     psql -d <id>_jdbc -f library_notify.sql
+
+CREATE OR REPLACE FUNCTION library_change_key(tbl text, r jsonb) RETURNS text AS $$
+    SELECT tbl || ':' || CASE tbl
+        WHEN 'book' THEN r->>'isbn'
+        WHEN 'author' THEN r->>'authorid'
+        WHEN 'customer' THEN r->>'customerid'
+        WHEN 'cust_book' THEN (r->>'isbn') || ':' || (r->>'customerid')
+        WHEN 'book_author' THEN (r->>'isbn') || ':' || (r->>'authorid')
+    END
+$$ LANGUAGE sql IMMUTABLE;
+
+CREATE OR REPLACE FUNCTION library_notify_row_limit() RETURNS integer AS $$
+    SELECT 100
+$$ LANGUAGE sql IMMUTABLE;
+
+-- Statement level: the changed rows are in the transition tables old_rows and new_rows, as far
+-- as the trigger's event has them
+CREATE OR REPLACE FUNCTION library_notify() RETURNS trigger AS $$
+DECLARE
+    changed integer;
+BEGIN
+    IF TG_OP = 'TRUNCATE' THEN
+        PERFORM pg_notify('library_changes', TG_TABLE_NAME || ':*');
+        RETURN NULL;
+    END IF;
+    -- Counts no further than the limit, so a huge statement is not read twice
+    IF TG_OP = 'INSERT' THEN
+        SELECT count(*) INTO changed FROM (SELECT 1 FROM new_rows LIMIT library_notify_row_limit() + 1) r;
+    ELSE
+        SELECT count(*) INTO changed FROM (SELECT 1 FROM old_rows LIMIT library_notify_row_limit() + 1) r;
+    END IF;
+    IF changed = 0 THEN
+        RETURN NULL;
+    END IF;
+    IF changed > library_notify_row_limit() THEN
+        PERFORM pg_notify('library_changes', TG_TABLE_NAME || ':*');
+        RETURN NULL;
+    END IF;
+    -- An update that changes the key invalidates both the old and the new key
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM pg_notify('library_changes', library_change_key(TG_TABLE_NAME, to_jsonb(o))) FROM old_rows o;
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        PERFORM pg_notify('library_changes', library_change_key(TG_TABLE_NAME, to_jsonb(n))) FROM new_rows n;
+    END IF;
+    RETURN NULL;
+END;
+$$ LANGUAGE plpgsql;
+
+DROP TRIGGER IF EXISTS library_notify ON book;
+DROP TRIGGER IF EXISTS library_notify_insert ON book;
+DROP TRIGGER IF EXISTS library_notify_update ON book;
+DROP TRIGGER IF EXISTS library_notify_delete ON book;
+DROP TRIGGER IF EXISTS library_notify_truncate ON book;
+CREATE TRIGGER library_notify_insert AFTER INSERT ON book
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_update AFTER UPDATE ON book
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_delete AFTER DELETE ON book
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_truncate AFTER TRUNCATE ON book
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+
+DROP TRIGGER IF EXISTS library_notify ON author;
+DROP TRIGGER IF EXISTS library_notify_insert ON author;
+DROP TRIGGER IF EXISTS library_notify_update ON author;
+DROP TRIGGER IF EXISTS library_notify_delete ON author;
+DROP TRIGGER IF EXISTS library_notify_truncate ON author;
+CREATE TRIGGER library_notify_insert AFTER INSERT ON author
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_update AFTER UPDATE ON author
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_delete AFTER DELETE ON author
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_truncate AFTER TRUNCATE ON author
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+
+DROP TRIGGER IF EXISTS library_notify ON customer;
+DROP TRIGGER IF EXISTS library_notify_insert ON customer;
+DROP TRIGGER IF EXISTS library_notify_update ON customer;
+DROP TRIGGER IF EXISTS library_notify_delete ON customer;
+DROP TRIGGER IF EXISTS library_notify_truncate ON customer;
+CREATE TRIGGER library_notify_insert AFTER INSERT ON customer
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_update AFTER UPDATE ON customer
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_delete AFTER DELETE ON customer
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_truncate AFTER TRUNCATE ON customer
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+
+DROP TRIGGER IF EXISTS library_notify ON cust_book;
+DROP TRIGGER IF EXISTS library_notify_insert ON cust_book;
+DROP TRIGGER IF EXISTS library_notify_update ON cust_book;
+DROP TRIGGER IF EXISTS library_notify_delete ON cust_book;
+DROP TRIGGER IF EXISTS library_notify_truncate ON cust_book;
+CREATE TRIGGER library_notify_insert AFTER INSERT ON cust_book
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_update AFTER UPDATE ON cust_book
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_delete AFTER DELETE ON cust_book
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_truncate AFTER TRUNCATE ON cust_book
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+
+DROP TRIGGER IF EXISTS library_notify ON book_author;
+DROP TRIGGER IF EXISTS library_notify_insert ON book_author;
+DROP TRIGGER IF EXISTS library_notify_update ON book_author;
+DROP TRIGGER IF EXISTS library_notify_delete ON book_author;
+DROP TRIGGER IF EXISTS library_notify_truncate ON book_author;
+CREATE TRIGGER library_notify_insert AFTER INSERT ON book_author
+    REFERENCING NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_update AFTER UPDATE ON book_author
+    REFERENCING OLD TABLE AS old_rows NEW TABLE AS new_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_delete AFTER DELETE ON book_author
+    REFERENCING OLD TABLE AS old_rows FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
+CREATE TRIGGER library_notify_truncate AFTER TRUNCATE ON book_author
+    FOR EACH STATEMENT EXECUTE PROCEDURE library_notify();
@@ -0,0 +1,56 @@
+-- library_stripes.sql
+--
+-- Striped inventory for popular books. Every borrow and return of a title updates its one
+-- book row, so a new release queues every desk on that row's lock. Striping spreads the copies
+-- left over several book_stripe rows; a borrow in the Striped loan mode takes a copy from any
+-- stripe no one else has locked (FOR UPDATE SKIP LOCKED), so borrows of the same title mostly
+-- run side by side.
+--
+-- The copies left of a book are always book.numleft plus the numleft of its stripes, and
+-- LibraryModel adds them up wherever it shows or exports copies left. Striping a book moves its
+-- copies left into the stripes and sets book.numleft to 0; a book without stripes works as before.
+-- The Striped loan mode takes copies from any unlocked stripe first. The other modes keep
+-- their own locking and only turn to the stripes when book.numleft is 0, and returns put the
+-- copy of a striped book back into one of its stripes. Bulk returns spread the copies of a
+-- striped book over its stripes.
+--
+-- Run this once against the library database, e.g.
+--
+--     psql -d <id>_jdbc -f library_stripes.sql
+--
+-- then stripe the busy titles:
+--
+--     SELECT library_stripe_book(isbn, 8) FROM book WHERE numofcop >= 20;
+--
+-- library_stripe_book(isbn, 0) gathers the copies back into the book row.
+
+CREATE TABLE IF NOT EXISTS book_stripe (
+    isbn integer NOT NULL REFERENCES book ON DELETE CASCADE,
+    stripe integer NOT NULL,
+    numleft integer NOT NULL CHECK (numleft >= 0),
+    PRIMARY KEY (isbn, stripe)
+);
+
+-- Spreads the copies left of a book evenly over the given number of stripes, returning them
+CREATE OR REPLACE FUNCTION library_stripe_book(book_isbn integer, stripes integer) RETURNS integer AS $$
+DECLARE
+    total integer;
+BEGIN
+    SELECT numleft INTO total FROM book WHERE isbn = book_isbn FOR UPDATE;
+    IF NOT FOUND THEN
+        RAISE EXCEPTION 'No book with ISBN %', book_isbn;
+    END IF;
+    total := total + COALESCE((SELECT sum(numleft) FROM book_stripe WHERE isbn = book_isbn), 0);
+    DELETE FROM book_stripe WHERE isbn = book_isbn;
+
+    IF stripes > 0 THEN
+        INSERT INTO book_stripe (isbn, stripe, numleft)
+            SELECT book_isbn, s, total / stripes + CASE WHEN s < total % stripes THEN 1 ELSE 0 END
+            FROM generate_series(0, stripes - 1) s;
+        UPDATE book SET numleft = 0 WHERE isbn = book_isbn;
+    ELSE
+        UPDATE book SET numleft = total WHERE isbn = book_isbn;
+    END IF;
+    RETURN total;
+END;
+$$ LANGUAGE plpgsql;